@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.Attribute;
+import COSE.HeaderKeys;
+import COSE.KeyKeys;
+import COSE.MessageTag;
+import COSE.OneKey;
+import COSE.Recipient;
+import COSE.Signer;
+
+import se.sics.ace.cwt.CWT;
+import se.sics.ace.cwt.CwtCryptoCtx;
+
+/**
+ * JMH benchmarks for <code>CWT.encode(CwtCryptoCtx)</code> and
+ * <code>CWT.processCOSE(byte[], CwtCryptoCtx)</code> covering all COSE
+ * wrappers supported by <code>encode</code>.
+ *
+ * The <code>parties</code> parameter is the number of signers in a Sign
+ * message and the number of candidate recipients in the verifying context
+ * of a MAC or Encrypt message (the matching recipient is always the last
+ * one).  It has no effect on the single-party wrappers.
+ *
+ * Run with <code>java -jar target/benchmarks.jar -prof gc</code> to get
+ * allocation rates, or use the main method of this class.
+ *
+ * @author Ludwig Seitz
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CwtBenchmark {
+
+    /**
+     * The COSE wrapper to benchmark
+     */
+    @Param({"Encrypt0", "Encrypt", "Sign1", "Sign", "MAC0", "MAC"})
+    public String wrapper;
+
+    /**
+     * The number of claims in the token
+     */
+    @Param({"4", "16", "64"})
+    public int claimCount;
+
+    /**
+     * The number of signers or recipients
+     */
+    @Param({"1", "4"})
+    public int parties;
+
+    /**
+     * Whether to use prepared crypto contexts (MAC0 and Encrypt0 only)
+     */
+    @Param({"false", "true"})
+    public boolean prepared;
+
+    private static byte[] key128 = {'a', 'b', 'c', 4, 5, 6, 7, 8, 9, 10,
+            11, 12, 13, 14, 15, 16};
+
+    private static byte[] key256 = {'a', 'b', 'c', 4, 5, 6, 7, 8, 9, 10,
+            11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26,
+            27, 28, 29, 30, 31, 32};
+
+    private Map<String, CBORObject> claims;
+
+    private CWT cwt;
+
+    private CwtCryptoCtx issueCtx;
+
+    private CwtCryptoCtx verifyCtx;
+
+    private byte[] token;
+
+    /**
+     * Builds the claims, the contexts and a pre-encoded token.
+     *
+     * @throws Exception
+     */
+    @Setup
+    public void setUp() throws Exception {
+        this.claims = makeClaims(this.claimCount);
+        this.cwt = new CWT(this.claims);
+
+        switch (MessageTag.valueOf(this.wrapper)) {
+        case Encrypt0:
+            this.issueCtx = CwtCryptoCtx.encrypt0(key128,
+                    AlgorithmID.AES_CCM_16_64_128.AsCBOR());
+            this.verifyCtx = this.issueCtx;
+            break;
+
+        case Encrypt:
+            this.issueCtx = CwtCryptoCtx.encrypt(
+                    Collections.singletonList(makeRecipient(key128,
+                            this.parties - 1)),
+                    AlgorithmID.AES_CCM_16_64_128.AsCBOR());
+            this.verifyCtx = CwtCryptoCtx.encrypt(
+                    makeRecipients(key128, this.parties),
+                    AlgorithmID.AES_CCM_16_64_128.AsCBOR());
+            break;
+
+        case Sign1:
+            OneKey privateKey = OneKey.generateKey(AlgorithmID.ECDSA_256);
+            this.issueCtx = CwtCryptoCtx.sign1Create(privateKey,
+                    AlgorithmID.ECDSA_256.AsCBOR());
+            this.verifyCtx = CwtCryptoCtx.sign1Verify(
+                    privateKey.PublicKey(), AlgorithmID.ECDSA_256.AsCBOR());
+            break;
+
+        case Sign:
+            List<Signer> signers = new ArrayList<>();
+            OneKey last = null;
+            for (int i = 0; i < this.parties; i++) {
+                last = OneKey.generateKey(AlgorithmID.ECDSA_256);
+                Signer s = new Signer();
+                s.setKey(last);
+                s.addAttribute(HeaderKeys.Algorithm,
+                        AlgorithmID.ECDSA_256.AsCBOR(), Attribute.PROTECTED);
+                s.addAttribute(HeaderKeys.KID, kid(i), Attribute.UNPROTECTED);
+                signers.add(s);
+            }
+            this.issueCtx = CwtCryptoCtx.signCreate(signers,
+                    AlgorithmID.ECDSA_256.AsCBOR());
+            OneKey publicKey = last.PublicKey();
+            publicKey.add(KeyKeys.KeyId, kid(this.parties - 1));
+            this.verifyCtx = CwtCryptoCtx.signVerify(publicKey,
+                    AlgorithmID.ECDSA_256.AsCBOR());
+            break;
+
+        case MAC0:
+            this.issueCtx = CwtCryptoCtx.mac0(key256,
+                    AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+            this.verifyCtx = this.issueCtx;
+            break;
+
+        case MAC:
+            this.issueCtx = CwtCryptoCtx.mac(
+                    Collections.singletonList(makeRecipient(key256,
+                            this.parties - 1)),
+                    AlgorithmID.HMAC_SHA_256.AsCBOR());
+            this.verifyCtx = CwtCryptoCtx.mac(
+                    makeRecipients(key256, this.parties),
+                    AlgorithmID.HMAC_SHA_256.AsCBOR());
+            break;
+
+        default:
+            throw new IllegalArgumentException(
+                    "Unknown COSE wrapper type: " + this.wrapper);
+        }
+
+        if (this.prepared) {
+            this.issueCtx.prepare();
+            this.verifyCtx.prepare();
+        }
+        this.token = this.cwt.encode(this.issueCtx).EncodeToBytes();
+    }
+
+    /**
+     * @return  the COSE wrapped token
+     * @throws Exception
+     */
+    @Benchmark
+    public CBORObject encode() throws Exception {
+        return this.cwt.encode(this.issueCtx);
+    }
+
+    /**
+     * @return  the COSE wrapped token as bytes
+     * @throws Exception
+     */
+    @Benchmark
+    public byte[] encodeToBytes() throws Exception {
+        return this.cwt.encodeToBytes(this.issueCtx);
+    }
+
+    /**
+     * @return  a token built from the claims and wrapped as bytes
+     * @throws Exception
+     */
+    @Benchmark
+    public byte[] buildAndEncode() throws Exception {
+        return CWT.builder().claims(this.claims).build()
+                .encodeToBytes(this.issueCtx);
+    }
+
+    /**
+     * @return  the parsed and verified token
+     * @throws Exception
+     */
+    @Benchmark
+    public CWT processCOSE() throws Exception {
+        return CWT.processCOSE(this.token, this.verifyCtx);
+    }
+
+    /**
+     * Creates a claim set of the given size, starting with the registered
+     * CWT claims and filling up with private claims.
+     *
+     * @param size  the number of claims
+     * @return  the claims
+     */
+    private static Map<String, CBORObject> makeClaims(int size) {
+        Map<String, CBORObject> base = new LinkedHashMap<>();
+        base.put("iss", CBORObject.FromObject("coap://as.example.com"));
+        base.put("aud", CBORObject.FromObject("coap://light.example.com"));
+        base.put("exp", CBORObject.FromObject(1444064944));
+        base.put("cti", CBORObject.FromObject(new byte[]{0x0B, 0x71}));
+        base.put("sub", CBORObject.FromObject("erikw"));
+        base.put("nbf", CBORObject.FromObject(1443944944));
+        base.put("iat", CBORObject.FromObject(1443944944));
+        base.put("scope", CBORObject.FromObject(
+                "r+/s/light rwx+/a/led w+/dtls"));
+
+        Map<String, CBORObject> claims = new HashMap<>();
+        for (Map.Entry<String, CBORObject> e : base.entrySet()) {
+            if (claims.size() == size) {
+                break;
+            }
+            claims.put(e.getKey(), e.getValue());
+        }
+        for (int i = claims.size(); i < size; i++) {
+            claims.put("claim" + i,
+                    CBORObject.FromObject("private claim value " + i));
+        }
+        return claims;
+    }
+
+    private static CBORObject kid(int i) {
+        return CBORObject.FromObject(new byte[]{'k', 'i', 'd', (byte)i});
+    }
+
+    /**
+     * Creates a direct recipient with a kid.
+     *
+     * @param key  the raw symmetric key
+     * @param i  the index used for the kid
+     * @return  the recipient
+     * @throws Exception
+     */
+    private static Recipient makeRecipient(byte[] key, int i)
+            throws Exception {
+        Recipient r = new Recipient();
+        r.addAttribute(HeaderKeys.Algorithm, AlgorithmID.Direct.AsCBOR(),
+                Attribute.UNPROTECTED);
+        r.addAttribute(HeaderKeys.KID, kid(i), Attribute.UNPROTECTED);
+        CBORObject ckey = CBORObject.NewMap();
+        ckey.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
+        ckey.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(key));
+        r.SetKey(new OneKey(ckey));
+        return r;
+    }
+
+    /**
+     * Creates the recipients of a verifying context, where only the last
+     * one matches the recipient used for issuing.
+     *
+     * @param key  the raw symmetric key of the matching recipient
+     * @param count  the number of recipients
+     * @return  the recipients
+     * @throws Exception
+     */
+    private static List<Recipient> makeRecipients(byte[] key, int count)
+            throws Exception {
+        List<Recipient> recipients = new ArrayList<>();
+        for (int i = 0; i < count - 1; i++) {
+            byte[] other = key.clone();
+            other[0] = (byte)i;
+            recipients.add(makeRecipient(other, i));
+        }
+        recipients.add(makeRecipient(key, count - 1));
+        return recipients;
+    }
+
+    /**
+     * Runs all benchmarks with the GC profiler enabled.
+     *
+     * @param args  not used
+     * @throws RunnerException
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CwtBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
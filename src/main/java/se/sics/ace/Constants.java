@@ -378,20 +378,25 @@ public class Constants {
            String keyStr = null;
            CBORObject obj = map.get(key);
            if (key.isIntegral()) {
-               short keyInt = key.AsInt16();
-               if (keyInt > 0 && keyInt < Constants.ABBREV.length) {
-                  keyStr = Constants.ABBREV[keyInt];
-                   if (keyInt == GRANT_TYPE
-                           && map.get(key).getType().equals(CBORType.Number)) {
-                       obj = CBORObject.FromObject(GRANT_TYPES[obj.AsInt32()]);
-                   } else if (keyInt == ERROR
-                           && map.get(key).getType().equals(CBORType.Number)) {
-                       obj = CBORObject.FromObject(ERROR_CODES[obj.AsInt32()]);
-                   }                   
-               } else {
+               int keyInt = key.AsInt32();
+               keyStr = LabelRegistry.getName(keyInt);
+               if (keyStr == null) {
                    throw new AceException("Malformed parameter map");
                }
-           } else if (key.GetTags().equals(CBORType.TextString)) {
+               if (keyInt == GRANT_TYPE
+                       && obj.getType().equals(CBORType.Number)) {
+                   String gt = LabelRegistry.getGrantType(obj.AsInt32());
+                   if (gt != null) {
+                       obj = CBORObject.FromObject(gt);
+                   }
+               } else if (keyInt == ERROR
+                       && obj.getType().equals(CBORType.Number)) {
+                   String err = LabelRegistry.getErrorCode(obj.AsInt32());
+                   if (err != null) {
+                       obj = CBORObject.FromObject(err);
+                   }
+               }
+           } else if (key.getType().equals(CBORType.TextString)) {
                keyStr = key.AsString();
            } else {
                throw new AceException("Malformed parameter map");
@@ -411,28 +416,24 @@ public class Constants {
    public static CBORObject abbreviate(Map<String, CBORObject> map) {
        CBORObject ret = CBORObject.NewMap();
        for (Entry<String, CBORObject> e : map.entrySet()) {
-           Short keyInt = getIdx(ABBREV, e.getKey());
+           int keyInt = LabelRegistry.getLabel(e.getKey());
            if (keyInt > 0) { //found an abbreviation
+               CBORObject key = CBORObject.FromObject(keyInt);
+               int keyVal = LabelRegistry.UNKNOWN;
                if (keyInt == GRANT_TYPE 
                        && e.getValue().getType().equals(CBORType.TextString)) {
-                   Short keyVal = getIdx(GRANT_TYPES, e.getValue().AsString());
-                   if (keyVal >=0) {
-                       ret.Add(keyInt, keyVal);
-                   } else {
-                       ret.Add(keyInt, e.getValue());
-                   }
+                   keyVal = LabelRegistry.getGrantTypeLabel(
+                           e.getValue().AsString());
                } else if (keyInt == ERROR 
                        && e.getValue().getType().equals(CBORType.TextString)) {
-                   Short keyVal = getIdx(ERROR_CODES, e.getValue().AsString());
-                   if (keyVal >=0) {
-                       ret.Add(keyInt, keyVal);
-                   } else {
-                       ret.Add(keyInt, e.getValue());
-                   }
+                   keyVal = LabelRegistry.getErrorCodeLabel(
+                           e.getValue().AsString());
+               }
+               if (keyVal >= 0) {
+                   ret.Add(key, CBORObject.FromObject(keyVal));
                } else {
-                   ret.Add(keyInt, e.getValue());
+                   ret.Add(key, e.getValue());
                }
-
            } else {
                ret.Add(e.getKey(), e.getValue());
            }
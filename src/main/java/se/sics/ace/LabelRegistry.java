@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A registry mapping claim and parameter names to their integer labels 
+ * (abbreviations) and back, as well as the abbreviated values of the grant 
+ * type and error parameters.
+ * 
+ * The registry is pre-filled with the abbreviations from 
+ * <code>Constants</code>.  Applications can register their own claims, so
+ * that these are abbreviated when encoding and unabbreviated when parsing.
+ * 
+ * Lookups are constant time and do not allocate.  Registration is 
+ * copy-on-write and meant to be done at startup.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class LabelRegistry {
+    
+    /**
+     * Returned by the lookup methods if a name is not registered
+     */
+    public static final int UNKNOWN = -1;
+    
+    /**
+     * Labels below this value are looked up in an array
+     */
+    private static final int DENSE_LIMIT = 256;
+
+    /**
+     * Label values by name
+     */
+    private static volatile Map<String, Integer> labels;
+    
+    /**
+     * Names by label for labels below DENSE_LIMIT
+     */
+    private static volatile String[] names;
+    
+    /**
+     * Names by label for labels from DENSE_LIMIT upwards
+     */
+    private static volatile Map<Integer, String> highNames;
+    
+    private static final Map<String, Integer> grantTypes 
+        = index(Constants.GRANT_TYPES);
+    
+    private static final Map<String, Integer> errorCodes 
+        = index(Constants.ERROR_CODES);
+    
+    static {
+        Map<String, Integer> l = new HashMap<>();
+        String[] n = new String[DENSE_LIMIT];
+        for (int i = 1; i < Constants.ABBREV.length; i++) {
+            l.put(Constants.ABBREV[i], i);
+            n[i] = Constants.ABBREV[i];
+        }
+        labels = l;
+        names = n;
+        highNames = new HashMap<>();
+    }
+    
+    private LabelRegistry() {
+        //No instances
+    }
+    
+    private static Map<String, Integer> index(String[] values) {
+        Map<String, Integer> ret = new HashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            ret.put(values[i], i);
+        }
+        return ret;
+    }
+    
+    /**
+     * Registers an additional claim or parameter. Registering the same 
+     * name and label again has no effect.
+     * 
+     * @param name  the name of the claim or parameter
+     * @param label  the integer label, must be positive
+     * 
+     * @throws AceException  if the name or the label is already registered 
+     *     with a different mapping
+     */
+    public static synchronized void register(String name, int label) 
+            throws AceException {
+        if (name == null || label <= 0) {
+            throw new AceException("Invalid claim registration");
+        }
+        Integer old = labels.get(name);
+        if (old != null) {
+            if (old.intValue() == label) {
+                return;
+            }
+            throw new AceException("Name " + name + " already registered");
+        }
+        if (getName(label) != null) {
+            throw new AceException("Label " + label + " already registered");
+        }
+        Map<String, Integer> l = new HashMap<>(labels);
+        l.put(name, label);
+        if (label < DENSE_LIMIT) {
+            String[] n = Arrays.copyOf(names, names.length);
+            n[label] = name;
+            names = n;
+        } else {
+            Map<Integer, String> h = new HashMap<>(highNames);
+            h.put(label, name);
+            highNames = h;
+        }
+        labels = l;
+    }
+    
+    /**
+     * @param name  the name of a claim or parameter
+     * @return  the integer label or UNKNOWN if the name is not registered
+     */
+    public static int getLabel(String name) {
+        if (name == null) {
+            return UNKNOWN;
+        }
+        Integer label = labels.get(name);
+        return label == null ? UNKNOWN : label.intValue();
+    }
+    
+    /**
+     * @param label  the integer label of a claim or parameter
+     * @return  the name or null if the label is not registered
+     */
+    public static String getName(int label) {
+        if (label <= 0) {
+            return null;
+        }
+        if (label < DENSE_LIMIT) {
+            return names[label];
+        }
+        return highNames.get(label);
+    }
+    
+    /**
+     * @param grantType  the name of a grant type
+     * @return  the abbreviation or UNKNOWN if there is none
+     */
+    public static int getGrantTypeLabel(String grantType) {
+        return lookup(grantTypes, grantType);
+    }
+    
+    /**
+     * @param label  the abbreviation of a grant type
+     * @return  the name of the grant type or null if there is none
+     */
+    public static String getGrantType(int label) {
+        return lookup(Constants.GRANT_TYPES, label);
+    }
+    
+    /**
+     * @param errorCode  the name of an error code
+     * @return  the abbreviation or UNKNOWN if there is none
+     */
+    public static int getErrorCodeLabel(String errorCode) {
+        return lookup(errorCodes, errorCode);
+    }
+    
+    /**
+     * @param label  the abbreviation of an error code
+     * @return  the name of the error code or null if there is none
+     */
+    public static String getErrorCode(int label) {
+        return lookup(Constants.ERROR_CODES, label);
+    }
+    
+    private static int lookup(Map<String, Integer> map, String key) {
+        if (key == null) {
+            return UNKNOWN;
+        }
+        Integer label = map.get(key);
+        return label == null ? UNKNOWN : label.intValue();
+    }
+    
+    private static String lookup(String[] values, int label) {
+        if (label < 0 || label >= values.length) {
+            return null;
+        }
+        return values[label];
+    }
+}
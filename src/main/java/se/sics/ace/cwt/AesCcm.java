@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * AES-CCM (RFC 3610) over an AES engine that is keyed once.  The 
+ * CCMBlockCipher of BouncyCastle sets up the key schedule twice for every
+ * message, which dominates the cost for small messages.
+ * 
+ * Instances are not thread-safe.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class AesCcm {
+    
+    private static final int BLOCK = 16;
+    
+    private final AESEngine aes = new AESEngine();
+    
+    /**
+     * The tag length in bytes
+     */
+    private final int macSize;
+    
+    /**
+     * The CBC-MAC state
+     */
+    private final byte[] x = new byte[BLOCK];
+    
+    /**
+     * The number of bytes absorbed into the current CBC-MAC block
+     */
+    private int xPos;
+    
+    /**
+     * The counter block
+     */
+    private final byte[] a = new byte[BLOCK];
+    
+    /**
+     * The key stream block
+     */
+    private final byte[] s = new byte[BLOCK];
+    
+    /**
+     * Constructor.
+     * 
+     * @param key  the AES key
+     * @param macSize  the tag length in bytes
+     */
+    AesCcm(byte[] key, int macSize) {
+        this.aes.init(true, new KeyParameter(key));
+        this.macSize = macSize;
+    }
+    
+    /**
+     * Encrypt and authenticate.
+     * 
+     * @param nonce  the nonce, 7 to 13 bytes
+     * @param aad  the additional authenticated data
+     * @param in  the plaintext
+     * @return  the ciphertext followed by the tag
+     */
+    byte[] encrypt(byte[] nonce, byte[] aad, byte[] in) {
+        checkLength(nonce, in.length);
+        byte[] out = new byte[in.length + this.macSize];
+        cbcMac(nonce, aad, in, 0, in.length);
+        ctr(nonce, 0, this.x, 0, this.macSize, out, in.length);
+        ctr(nonce, 1, in, 0, in.length, out, 0);
+        return out;
+    }
+    
+    /**
+     * Decrypt and verify.
+     * 
+     * @param nonce  the nonce, 7 to 13 bytes
+     * @param aad  the additional authenticated data
+     * @param in  the buffer holding the ciphertext followed by the tag
+     * @param off  the offset of the ciphertext
+     * @param len  the length of ciphertext and tag
+     * @return  the plaintext
+     * @throws InvalidCipherTextException  if the tag does not match
+     */
+    byte[] decrypt(byte[] nonce, byte[] aad, byte[] in, int off, int len) 
+            throws InvalidCipherTextException {
+        if (len < this.macSize) {
+            throw new InvalidCipherTextException("data too short");
+        }
+        int dataLen = len - this.macSize;
+        checkLength(nonce, dataLen);
+        byte[] out = new byte[dataLen];
+        ctr(nonce, 1, in, off, dataLen, out, 0);
+        byte[] tag = new byte[this.macSize];
+        ctr(nonce, 0, in, off + dataLen, this.macSize, tag, 0);
+        cbcMac(nonce, aad, out, 0, dataLen);
+        if (!PreparedCrypto.constantTimeEquals(this.x, 0, this.macSize, 
+                tag)) {
+            throw new InvalidCipherTextException("mac check in CCM failed");
+        }
+        return out;
+    }
+    
+    private static void checkLength(byte[] nonce, int len) {
+        int q = 15 - nonce.length;
+        if (q < 2 || q > 8) {
+            throw new IllegalArgumentException(
+                    "nonce must have length from 7 to 13 octets");
+        }
+        if (q < 4 && len >= (1 << (8 * q))) {
+            throw new IllegalStateException(
+                    "CCM packet too large for choice of q.");
+        }
+    }
+    
+    /**
+     * Computes the CBC-MAC, the result is left in x.
+     */
+    private void cbcMac(byte[] nonce, byte[] aad, byte[] data, int off, 
+            int len) {
+        int q = 15 - nonce.length;
+        this.x[0] = (byte)((aad.length > 0 ? 0x40 : 0) 
+                | (((this.macSize - 2) / 2) << 3) | (q - 1));
+        System.arraycopy(nonce, 0, this.x, 1, nonce.length);
+        long l = len;
+        for (int i = BLOCK - 1; i > nonce.length; i--) {
+            this.x[i] = (byte)l;
+            l >>>= 8;
+        }
+        this.aes.processBlock(this.x, 0, this.x, 0);
+        this.xPos = 0;
+        if (aad.length > 0) {
+            byte[] aadLen;
+            if (aad.length < 0xFF00) {
+                aadLen = new byte[] {(byte)(aad.length >>> 8), 
+                        (byte)aad.length};
+            } else {
+                aadLen = new byte[] {(byte)0xff, (byte)0xfe, 
+                        (byte)(aad.length >>> 24), (byte)(aad.length >>> 16),
+                        (byte)(aad.length >>> 8), (byte)aad.length};
+            }
+            absorb(aadLen, 0, aadLen.length);
+            absorb(aad, 0, aad.length);
+            pad();
+        }
+        absorb(data, off, len);
+        pad();
+    }
+    
+    private void absorb(byte[] in, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            this.x[this.xPos++] ^= in[off + i];
+            if (this.xPos == BLOCK) {
+                this.aes.processBlock(this.x, 0, this.x, 0);
+                this.xPos = 0;
+            }
+        }
+    }
+    
+    private void pad() {
+        if (this.xPos > 0) {
+            this.aes.processBlock(this.x, 0, this.x, 0);
+            this.xPos = 0;
+        }
+    }
+    
+    /**
+     * XORs data with the key stream starting at the given counter.
+     */
+    private void ctr(byte[] nonce, long counter, byte[] in, int inOff, 
+            int len, byte[] out, int outOff) {
+        int q = 15 - nonce.length;
+        this.a[0] = (byte)(q - 1);
+        System.arraycopy(nonce, 0, this.a, 1, nonce.length);
+        for (int i = 0; i < len; i += BLOCK) {
+            long c = counter++;
+            for (int j = BLOCK - 1; j > nonce.length; j--) {
+                this.a[j] = (byte)c;
+                c >>>= 8;
+            }
+            this.aes.processBlock(this.a, 0, this.s, 0);
+            int n = Math.min(BLOCK, len - i);
+            for (int j = 0; j < n; j++) {
+                out[outOff + i + j] = (byte)(in[inOff + i + j] ^ this.s[j]);
+            }
+        }
+    }
+}
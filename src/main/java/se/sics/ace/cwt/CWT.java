@@ -31,15 +31,26 @@
  *******************************************************************************/
 package se.sics.ace.cwt;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
 
 import se.sics.ace.AccessToken;
-import se.sics.ace.Constants;
 import se.sics.ace.AceException;
+import se.sics.ace.LabelRegistry;
 import COSE.AlgorithmID;
 import COSE.Attribute;
 import COSE.CoseException;
@@ -50,6 +61,7 @@ import COSE.KeyKeys;
 import COSE.MAC0Message;
 import COSE.MACMessage;
 import COSE.Message;
+import COSE.MessageTag;
 import COSE.OneKey;
 import COSE.Recipient;
 import COSE.Sign1Message;
@@ -62,20 +74,169 @@ import com.upokecenter.cbor.CBORType;
 /**
  * Implements CWTs.
  * 
+ * A CWT does not change after it is created.  Use <code>builder()</code> to
+ * create one without copying a map of claims.
+ * 
  * @author Ludwig Seitz
  *
  */
 public class CWT implements AccessToken {
 
-	private Map<String, CBORObject> claims;	
+	/**
+	 * Cached CBOR keys for the lookup of small claim labels
+	 */
+	private static final CBORObject[] labelKeys = new CBORObject[64];
+	
+	static {
+	    for (int i = 0; i < labelKeys.length; i++) {
+	        labelKeys[i] = CBORObject.FromObject(i);
+	    }
+	}
+	
+	/**
+	 * The claims, materialized on demand if this CWT is backed by a 
+	 * payload
+	 */
+	private volatile ClaimSet claims;	
+	
+	/**
+	 * The verified CBOR Map of claims or null if this CWT was created
+	 * from a map of claims
+	 */
+	private final CBORObject payload;
 	
 	/**
-	 * Creates a new CWT without a COSE wrapper.
+	 * The exp claim or Long.MAX_VALUE if absent
+	 */
+	private final long exp;
+	
+	/**
+	 * The nbf claim or Long.MIN_VALUE if absent
+	 */
+	private final long nbf;
+	
+	/**
+	 * The iat claim or Long.MIN_VALUE if absent
+	 */
+	private final long iat;
+	
+	/**
+	 * False if one of exp, nbf or iat is not an integer that fits a long,
+	 * the time checks then convert the claims on each call
+	 */
+	private final boolean timesDecoded;
+	
+	/**
+	 * The listener for processing metrics
+	 */
+	private static volatile CwtMetrics metrics = CwtMetrics.NOOP;
+	
+	/**
+	 * Per-thread scratch array for reading direct buffers with prepared 
+	 * contexts, null while in use
+	 */
+	private static final ThreadLocal<byte[]> scratch = 
+	        new ThreadLocal<byte[]>();
+	
+	/**
+	 * Creates a new CWT without a COSE wrapper.  The claims are copied.
 	 * 
 	 * @param claims  the map of claims.
 	 */
 	public CWT(Map<String, CBORObject> claims) {
-		this.claims = new HashMap<> (claims);
+		this(new ClaimSet(claims), null);
+	}
+	
+	/**
+	 * Creates a CWT from a set of claims or backed by a CBOR Map of claims.
+	 * The claims of a CBOR Map are only converted to a set of claims when 
+	 * they are all needed.
+	 * 
+	 * @param claims  the set of claims, not modified afterwards, or null
+	 * @param payload  the CBOR Map of claims, must have passed 
+	 *     checkClaims(), or null if claims is given
+	 */
+	private CWT(ClaimSet claims, CBORObject payload) {
+	    this(claims, payload, null);
+	}
+	
+	/**
+	 * Creates a CWT from a set of claims or backed by a CBOR Map of claims,
+	 * taking the time claims from a separate set.
+	 * 
+	 * @param claims  the set of claims, not modified afterwards, or null
+	 * @param payload  the CBOR Map of claims, must have passed 
+	 *     checkClaims(), or null if claims is given
+	 * @param times  the exp, nbf and iat claims, or null to take them from
+	 *     the claims of this CWT
+	 */
+	private CWT(ClaimSet claims, CBORObject payload, ClaimSet times) {
+	    this.claims = claims;
+	    this.payload = payload;
+	    CBORObject exp = (times == null) ? getClaim("exp") : times.get("exp");
+	    CBORObject nbf = (times == null) ? getClaim("nbf") : times.get("nbf");
+	    CBORObject iat = (times == null) ? getClaim("iat") : times.get("iat");
+	    this.timesDecoded = isTime(exp) && isTime(nbf) && isTime(iat);
+	    this.exp = this.timesDecoded ? time(exp, Long.MAX_VALUE) : 0L;
+	    this.nbf = this.timesDecoded ? time(nbf, Long.MIN_VALUE) : 0L;
+	    this.iat = this.timesDecoded ? time(iat, Long.MIN_VALUE) : 0L;
+	}
+	
+	/**
+	 * @param value  the value of a time claim or null
+	 * @return  true if the value is absent or can be held in a long
+	 */
+	private static boolean isTime(CBORObject value) {
+	    return value == null || (value.getType() == CBORType.Number 
+	            && value.CanTruncatedIntFitInInt64());
+	}
+	
+	/**
+	 * @param value  the value of a time claim or null
+	 * @param absent  the value to return if the claim is absent
+	 * @return  the time
+	 */
+	private static long time(CBORObject value, long absent) {
+	    return value == null ? absent : value.AsInt64();
+	}
+	
+	/**
+	 * Register a listener for the processing stages of all CWTs.
+	 * 
+	 * @param listener  the listener, null to stop collecting metrics
+	 */
+	public static void setMetrics(CwtMetrics listener) {
+	    metrics = (listener == null) ? CwtMetrics.NOOP : listener;
+	}
+	
+	/**
+	 * @return  the listener for the processing stages of all CWTs
+	 */
+	public static CwtMetrics getMetrics() {
+	    return metrics;
+	}
+	
+	/**
+	 * @param m  the metrics listener
+	 * @return  the start time of a stage, or 0 if no metrics are collected
+	 */
+	private static long startTimer(CwtMetrics m) {
+	    return (m == CwtMetrics.NOOP) ? 0 : System.nanoTime();
+	}
+	
+	/**
+	 * Report the time a stage took, if metrics are collected.
+	 * 
+	 * @param m  the metrics listener
+	 * @param stage  the stage
+	 * @param type  the message type
+	 * @param start  the start time from <code>startTimer()</code>
+	 */
+	private static void stopTimer(CwtMetrics m, CwtMetrics.Stage stage, 
+	        MessageTag type, long start) {
+	    if (m != CwtMetrics.NOOP) {
+	        m.stage(stage, type, System.nanoTime() - start);
+	    }
 	}
 	
 	/**
@@ -91,116 +252,508 @@ public class CWT implements AccessToken {
 	 */
 	public static CWT processCOSE(byte[] COSE_CWT, CwtCryptoCtx ctx) 
 			throws CoseException, AceException, Exception {
-		Message coseRaw = Message.DecodeFromBytes(COSE_CWT);
-		
-		if (coseRaw instanceof SignMessage) {
+	    return processCOSE(COSE_CWT, 0, COSE_CWT.length, ctx);
+	}
+	
+	/**
+	 * Parse and validate the COSE wrapper of a CWT that is a region of a
+	 * larger buffer.  Prepared contexts read the region in place, other 
+	 * contexts copy it for the COSE library.
+	 * 
+	 * @param buf  the buffer containing the COSE object
+	 * @param off  the offset of the COSE object in the buffer
+	 * @param len  the length of the COSE object
+	 * @param ctx  the crypto context
+	 * @return  the CWT object wrapped by the COSE object
+	 * @throws CoseException 
+	 * @throws AceException 
+	 * @throws Exception 
+	 */
+	public static CWT processCOSE(byte[] buf, int off, int len, 
+	        CwtCryptoCtx ctx) throws CoseException, AceException, Exception {
+	    if (off < 0 || len < 0 || off > buf.length - len) {
+	        throw new IndexOutOfBoundsException();
+	    }
+	    byte[] payload = verifyCOSE(buf, off, len, ctx);
+	    CwtMetrics m = metrics;
+	    long start = startTimer(m);
+	    ctx.getLimits().checkClaims(payload);
+	    CWT cwt = new CWT(null, 
+	            checkClaims(CBORObject.DecodeFromBytes(payload)));
+	    stopTimer(m, CwtMetrics.Stage.CLAIMS, ctx.getMessageType(), start);
+	    return cwt;
+	}
+	
+	/**
+	 * Parse and validate the COSE wrapper of a CWT held in the remaining
+	 * bytes of a buffer.  If the buffer is backed by an array, it is read 
+	 * in place.  Direct buffers are copied once, since the MAC, cipher and
+	 * COSE library primitives only operate on arrays; prepared contexts 
+	 * copy into a per-thread scratch array, so that no new array is 
+	 * allocated per token.  On success the position of the buffer is 
+	 * advanced to its limit.
+	 * 
+	 * @param COSE_CWT  the buffer containing the COSE object
+	 * @param ctx  the crypto context
+	 * @return  the CWT object wrapped by the COSE object
+	 * @throws CoseException 
+	 * @throws AceException 
+	 * @throws Exception 
+	 */
+	public static CWT processCOSE(ByteBuffer COSE_CWT, CwtCryptoCtx ctx) 
+	        throws CoseException, AceException, Exception {
+	    CWT cwt;
+	    if (COSE_CWT.hasArray()) {
+	        cwt = processCOSE(COSE_CWT.array(), 
+	                COSE_CWT.arrayOffset() + COSE_CWT.position(), 
+	                COSE_CWT.remaining(), ctx);
+	    } else if (ctx.getPrepared() != null && COSE_CWT.remaining() 
+	            <= ctx.getLimits().getMaxTokenSize()) {
+	        int len = COSE_CWT.remaining();
+	        //Take the scratch array while in use, so that a nested call 
+	        //on this thread (e.g. from a metrics listener) cannot clobber it
+	        byte[] raw = scratch.get();
+	        scratch.set(null);
+	        if (raw == null || raw.length < len) {
+	            raw = new byte[len];
+	        }
+	        try {
+	            COSE_CWT.duplicate().get(raw, 0, len);
+	            cwt = processCOSE(raw, 0, len, ctx);
+	        } finally {
+	            Arrays.fill(raw, 0, len, (byte)0);
+	            scratch.set(raw);
+	        }
+	    } else {
+	        byte[] raw = new byte[COSE_CWT.remaining()];
+	        COSE_CWT.duplicate().get(raw);
+	        cwt = processCOSE(raw, ctx);
+	    }
+	    //Call through Buffer, ByteBuffer.position(int) only exists since 
+	    //Java 9
+	    ((Buffer)COSE_CWT).position(COSE_CWT.limit());
+	    return cwt;
+	}
+	
+	/**
+	 * Validate the COSE wrapper of a CWT and read only the time window and
+	 * audience of its claims, without decoding them.
+	 * 
+	 * @param COSE_CWT  the raw bytes of the COSE object containing the CWT
+	 * @param ctx  the crypto context
+	 * @return  the time window and audience of the CWT
+	 * @throws CoseException 
+	 * @throws AceException 
+	 * @throws Exception 
+	 */
+	public static CwtPrescan prescanCOSE(byte[] COSE_CWT, CwtCryptoCtx ctx) 
+	        throws CoseException, AceException, Exception {
+	    byte[] payload = verifyCOSE(COSE_CWT, ctx);
+	    ctx.getLimits().checkClaims(payload);
+	    return CwtPrescan.scan(payload);
+	}
+	
+	/**
+	 * Parse and validate the COSE wrapper of a CWT, but only decode the 
+	 * claims that the caller asks for. All other claims are skipped on
+	 * the raw bytes of the payload.  The exp, nbf and iat claims are 
+	 * always decoded for the time checks of the CWT, but only returned by
+	 * getClaim() if requested or if they do not fit a long.
+	 * 
+	 * @param COSE_CWT  the raw bytes of the COSE object containing the CWT
+	 * @param ctx  the crypto context
+	 * @param claimNames  the names of the claims to decode
+	 * @return  a CWT containing only the requested claims that were present
+	 * @throws CoseException 
+	 * @throws AceException 
+	 * @throws Exception 
+	 */
+	public static CWT processCOSE(byte[] COSE_CWT, CwtCryptoCtx ctx, 
+	        Set<String> claimNames) 
+	                throws CoseException, AceException, Exception {
+	    byte[] payload = verifyCOSE(COSE_CWT, ctx);
+	    ctx.getLimits().checkClaims(payload);
+	    CborReader reader = new CborReader(payload, 0, payload.length);
+	    if (reader.peekMajorType() != CborReader.MAP) {
+	        throw new AceException("This is not a CWT");
+	    }
+	    long size = reader.readMapHeader();
+	    ClaimSet claims = new ClaimSet();
+	    ClaimSet times = new ClaimSet();
+	    for (long i = 0; size == CborReader.INDEFINITE 
+	            ? !reader.isBreak() : i < size; i++) {
+	        String name;
+	        switch (reader.peekMajorType()) {
+	        case CborReader.TEXT :
+	            name = reader.readText();
+	            break;
+	        case CborReader.UNSIGNED :
+	        case CborReader.NEGATIVE :
+	            long abbrev = reader.readInt();
+	            name = (abbrev > 0 && abbrev <= Integer.MAX_VALUE) 
+	                    ? LabelRegistry.getName((int)abbrev) : null;
+	            if (name == null) {
+	                throw new AceException(
+	                        "Unknown claim abbreviation: " + abbrev);
+	            }
+	            break;
+	        default :
+	            throw new AceException("Invalid key type in CWT claims map");
+	        }
+	        int start = reader.position();
+	        reader.skip();
+	        boolean time = name.equals("exp") || name.equals("nbf") 
+	                || name.equals("iat");
+	        if (claimNames.contains(name) || time) {
+	            CBORObject value = CBORObject.Read(new ByteArrayInputStream(
+	                    payload, start, reader.position() - start));
+	            if (claimNames.contains(name)) {
+	                claims.put(name, value);
+	            }
+	            if (time) {
+	                times.put(name, value);
+	                if (!isTime(value)) {
+	                    //The time checks then fall back to getClaim()
+	                    claims.put(name, value);
+	                }
+	            }
+	        }
+	    }
+	    if (size == CborReader.INDEFINITE) {
+	        reader.readBreak();
+	    }
+	    return new CWT(claims, null, times);
+	}
+	
+	/**
+	 * Parse and validate the COSE wrapper of a CWT on the given executor.
+	 * 
+	 * @param COSE_CWT  the raw bytes of the COSE object containing the CWT
+	 * @param ctx  the crypto context
+	 * @param executor  the executor to run the crypto processing on
+	 * @return  a future of the CWT object wrapped by the COSE object, that
+	 *     completes exceptionally with the exception processCOSE() would
+	 *     have thrown
+	 */
+	public static CompletableFuture<CWT> processCOSEAsync(
+	        final byte[] COSE_CWT, final CwtCryptoCtx ctx, Executor executor) {
+	    return callAsync(new Callable<CWT>() {
+	        @Override
+	        public CWT call() throws Exception {
+	            return processCOSE(COSE_CWT, ctx);
+	        }
+	    }, executor);
+	}
+	
+	/**
+	 * Run a call on an executor and complete a future with its outcome.
+	 * 
+	 * @param call  the call
+	 * @param executor  the executor
+	 * @return  the future
+	 */
+	private static <T> CompletableFuture<T> callAsync(final Callable<T> call, 
+	        Executor executor) {
+	    final CompletableFuture<T> future = new CompletableFuture<>();
+	    try {
+	        executor.execute(new Runnable() {
+	            @Override
+	            public void run() {
+	                try {
+	                    future.complete(call.call());
+	                } catch (Throwable e) {
+	                    future.completeExceptionally(e);
+	                }
+	            }
+	        });
+	    } catch (RuntimeException e) {
+	        //E.g. a RejectedExecutionException from a full pool
+	        future.completeExceptionally(e);
+	    }
+	    return future;
+	}
+	
+	/**
+	 * Validate the COSE wrapper of a CWT and return its payload.
+	 * 
+	 * @param COSE_CWT  the raw bytes of the COSE object containing the CWT
+	 * @param ctx  the crypto context
+	 * @return  the verified payload of the COSE object
+	 * @throws CoseException 
+	 * @throws AceException 
+	 * @throws Exception 
+	 */
+	private static byte[] verifyCOSE(byte[] COSE_CWT, CwtCryptoCtx ctx) 
+	        throws CoseException, AceException, Exception {
+	    return verifyCOSE(COSE_CWT, 0, COSE_CWT.length, ctx);
+	}
+	
+	/**
+	 * Validate the COSE wrapper of a CWT in a region of a buffer and return
+	 * its payload.
+	 * 
+	 * @param buf  the buffer containing the COSE object
+	 * @param off  the offset of the COSE object in the buffer
+	 * @param len  the length of the COSE object
+	 * @param ctx  the crypto context
+	 * @return  the verified payload of the COSE object
+	 * @throws CoseException 
+	 * @throws AceException 
+	 * @throws Exception 
+	 */
+	private static byte[] verifyCOSE(byte[] buf, int off, int len, 
+	        CwtCryptoCtx ctx) throws CoseException, AceException, Exception {
+	    CwtMetrics m = metrics;
+	    MessageTag type = ctx.getMessageType();
+	    boolean success = false;
+	    try {
+	        long start = startTimer(m);
+	        ctx.getLimits().checkMessage(buf, off, len);
+	        PreparedCrypto prepared = ctx.getPrepared();
+	        byte[] payload = null;
+	        if (prepared != null) {
+	            payload = prepared.verify(buf, off, len);
+	        }
+	        if (payload == null) {
+	            byte[] COSE_CWT = buf;
+	            if (off != 0 || len != buf.length) {
+	                COSE_CWT = Arrays.copyOfRange(buf, off, off + len);
+	            }
+	            start = startTimer(m);
+	            Message coseRaw = Message.DecodeFromBytes(COSE_CWT);
+	            stopTimer(m, CwtMetrics.Stage.DECODE, type, start);
+	            start = startTimer(m);
+	            payload = validate(coseRaw, COSE_CWT, ctx, m);
+	        }
+	        stopTimer(m, CwtMetrics.Stage.VERIFY, type, start);
+	        m.payloadSize(type, payload.length);
+	        success = true;
+	        return payload;
+	    } finally {
+	        m.processed(type, success);
+	    }
+	}
+	
+	/**
+	 * Validate a decoded COSE message and return its payload.
+	 * 
+	 * @param coseRaw  the COSE message
+	 * @param COSE_CWT  the raw bytes of the COSE message
+	 * @param ctx  the crypto context
+	 * @param m  the metrics listener
+	 * @return  the verified payload of the COSE object
+	 * @throws CoseException 
+	 * @throws AceException 
+	 * @throws Exception 
+	 */
+	private static byte[] validate(Message coseRaw, byte[] COSE_CWT, 
+	        CwtCryptoCtx ctx, CwtMetrics m) 
+	                throws CoseException, AceException, Exception {
+	    MessageTag type = ctx.getMessageType();
+	    int attempts = 0;
+		TrustStore store = ctx.getTrustStore();
+		if (coseRaw instanceof SignMessage && store != null) {
+		    //Only verify the first signer whose key we know
+		    SignMessage signed = (SignMessage)coseRaw;
+		    for (int i = 0; i < signed.getSignerCount(); i++) {
+		        OneKey key = store.get(
+		                signed.getSigner(i).findAttribute(HeaderKeys.KID));
+		        if (key != null) {
+		            m.recipientAttempts(type, 1);
+		            EcVerifier verifier = store.getVerifier(key);
+		            CBORObject msg = verifier == null ? null 
+		                    : CBORObject.DecodeFromBytes(COSE_CWT).Untag();
+		            if (validateSigner(signed, i, key, verifier, msg)) {
+		                return signed.GetContent();
+		            }
+		            throw new AceException("No valid signature found");
+		        }
+		    }
+		    m.recipientAttempts(type, 0);
+		    throw new AceException("No key for kid");
+		    
+		} else if (coseRaw instanceof SignMessage) {
 			SignMessage signed = (SignMessage)coseRaw;
 			//Check all signers, if kid is present compare that first
 			CBORObject myKid = ctx.getPublicKey().get(
 					CBORObject.FromObject(HeaderKeys.KID));
-			for (Signer s : signed.getSignerList()) {
-				CBORObject kid = s.findAttribute(HeaderKeys.KID);
+			EcVerifier verifier = ctx.getVerifier();
+			//The prepared verifier needs the raw structure, decode it once
+			//for all signers
+			CBORObject msg = verifier == null ? null 
+			        : CBORObject.DecodeFromBytes(COSE_CWT).Untag();
+			for (int i = 0; i < signed.getSignerCount(); i++) {
+				CBORObject kid = signed.getSigner(i).findAttribute(
+				        HeaderKeys.KID);
 				if (myKid == null || myKid.equals(kid)) {
-					s.setKey(ctx.getPublicKey());
-					if(signed.validate(s)) {
-						return new CWT(parseClaims(
-								CBORObject.DecodeFromBytes(
-										signed.GetContent())));
+					attempts++;
+					if (validateSigner(signed, i, ctx.getPublicKey(), 
+					        verifier, msg)) {
+					    m.recipientAttempts(type, attempts);
+						return signed.GetContent();
 					}
 				}
 			}
+			m.recipientAttempts(type, attempts);
 			throw new AceException("No valid signature found");	
 			
 		} else if (coseRaw instanceof Sign1Message) {
 			Sign1Message signed = (Sign1Message)coseRaw;
-			if (signed.validate(ctx.getPublicKey())) {
-				return new CWT(parseClaims(
-					CBORObject.DecodeFromBytes(signed.GetContent())));
+			OneKey key = ctx.getPublicKey();
+			EcVerifier verifier;
+			if (store != null) {
+			    key = store.get(signed.findAttribute(HeaderKeys.KID));
+			    if (key == null) {
+			        throw new AceException("No key for kid");
+			    }
+			    verifier = store.getVerifier(key);
+			} else {
+			    verifier = ctx.getVerifier();
+			}
+			if (verifier != null ? validateSign1(signed, verifier, COSE_CWT) 
+			        : signed.validate(key)) {
+				return signed.GetContent();
 			}
 			
 		} else if (coseRaw instanceof MACMessage) {
 			MACMessage maced = (MACMessage)coseRaw;
-			for (Recipient me : ctx.getRecipients()) {
-				CBORObject myKid = me.findAttribute(HeaderKeys.KID);
-				CBORObject myAlg = me.findAttribute(HeaderKeys.Algorithm);
-				CBORObject key = CBORObject.NewMap();
-				key.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
-				key.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(
-		        		me.getKey(AlgorithmID.FromCBOR(myAlg))));
-				for (Recipient r : maced.getRecipientList()) {
-					if (myKid == null || myKid.equals(
-							r.findAttribute(HeaderKeys.KID)))	{
-						if (myAlg.equals(r.findAttribute(HeaderKeys.Algorithm))) {
-						    OneKey coseKey = new OneKey(key);
-						    r.SetKey(coseKey);			    
-						    if (maced.Validate(r)) {
-						        return new CWT(parseClaims(
-						                CBORObject.DecodeFromBytes(maced.GetContent())));
-						    }
-						}
-					}
-				}
+			for (Recipient r : maced.getRecipientList()) {
+			    RecipientCandidates candidates = ctx.getRecipientKeys(
+			            r.findAttribute(HeaderKeys.KID), 
+			            r.findAttribute(HeaderKeys.Algorithm));
+			    int first = candidates.first();
+			    for (int i = 0; i < candidates.size(); i++) {
+			        int index = RecipientCandidates.index(first, i);
+			        r.SetKey(candidates.get(index).getKey());
+			        attempts++;
+			        if (maced.Validate(r)) {
+			            candidates.success(index);
+			            m.recipientAttempts(type, attempts);
+			            return maced.GetContent();
+			        }
+			    }
 			}
+			m.recipientAttempts(type, attempts);
 			throw new AceException("No valid MAC found");
 			
 		} else if (coseRaw instanceof MAC0Message) {
 			MAC0Message maced = (MAC0Message)coseRaw;
-			if (maced.Validate(ctx.getKey())) {
-				return new CWT(parseClaims(
-						CBORObject.DecodeFromBytes(maced.GetContent())));
+			if (maced.Validate(ctx.getKey(
+			        maced.findAttribute(HeaderKeys.KID)))) {
+				return maced.GetContent();
 			}
 			
 		} else if (coseRaw instanceof EncryptMessage) {
 			EncryptMessage encrypted = (EncryptMessage)coseRaw;
-			for (Recipient me : ctx.getRecipients()) {
-				CBORObject myKid = me.findAttribute(HeaderKeys.KID);
-				CBORObject myAlg = me.findAttribute(HeaderKeys.Algorithm);
-				CBORObject key = CBORObject.NewMap();
-				key.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
-				key.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(
-		        		me.getKey(AlgorithmID.FromCBOR(myAlg))));
-				for (Recipient r : encrypted.getRecipientList()) {
-					if (myKid == null || myKid.equals(
-							r.findAttribute(HeaderKeys.KID)))	{
-						if (myAlg.equals(r.findAttribute(HeaderKeys.Algorithm))) {
-						    OneKey coseKey = new OneKey(key);
-							r.SetKey(coseKey);
-							byte[] plaintext = processDecrypt(encrypted, r);
-							if (plaintext != null) {
-								return new CWT(parseClaims(
-										CBORObject.DecodeFromBytes(
-												plaintext)));
-							}
-						}
-					}
-				}
+			for (Recipient r : encrypted.getRecipientList()) {
+			    RecipientCandidates candidates = ctx.getRecipientKeys(
+			            r.findAttribute(HeaderKeys.KID), 
+			            r.findAttribute(HeaderKeys.Algorithm));
+			    int first = candidates.first();
+			    for (int i = 0; i < candidates.size(); i++) {
+			        int index = RecipientCandidates.index(first, i);
+			        r.SetKey(candidates.get(index).getKey());
+			        attempts++;
+			        byte[] plaintext = processDecrypt(encrypted, r);
+			        if (plaintext != null) {
+			            candidates.success(index);
+			            m.recipientAttempts(type, attempts);
+			            return plaintext;
+			        }
+			    }
 			}
+			m.recipientAttempts(type, attempts);
 			throw new AceException("No valid key for ciphertext found");
 			
 		} else if (coseRaw instanceof Encrypt0Message) {
 			Encrypt0Message encrypted = (Encrypt0Message)coseRaw;
-			return new CWT(parseClaims(
-					CBORObject.DecodeFromBytes(encrypted.decrypt(
-							ctx.getKey()))));
+			return encrypted.decrypt(ctx.getKey(
+			        encrypted.findAttribute(HeaderKeys.KID)));
 		}
 		throw new AceException("Unknown or invalid COSE crypto wrapper");
 	}
 	
+	/**
+	 * Validate one signer of a Sign message, with the prepared verifier 
+	 * for its key if there is one.
+	 * 
+	 * @param signed  the Sign message
+	 * @param index  the index of the signer
+	 * @param key  the public key of the signer
+	 * @param verifier  the prepared verifier for the key or null
+	 * @param msg  the untagged CBOR array of the Sign message, decoded
+	 *     once by the caller, or null if there is no verifier
+	 * @return  true if the signature is valid
+	 * @throws CoseException 
+	 */
+	private static boolean validateSigner(SignMessage signed, int index, 
+	        OneKey key, EcVerifier verifier, CBORObject msg) 
+	                throws CoseException {
+	    Signer s = signed.getSigner(index);
+	    if (verifier == null) {
+	        s.setKey(key);
+	        return signed.validate(s);
+	    }
+	    //Build the Sig_structure from the raw message, the COSE library
+	    //only verifies signers with a OneKey
+	    CBORObject signer = msg.get(3).get(index);
+	    byte[] external = signed.getExternal();
+	    CBORObject toBeSigned = CBORObject.NewArray();
+	    toBeSigned.Add("Signature");
+	    toBeSigned.Add(msg.get(0));
+	    toBeSigned.Add(signer.get(0));
+	    toBeSigned.Add(external == null ? new byte[0] : external);
+	    toBeSigned.Add(msg.get(2));
+	    return verifier.verify(AlgorithmID.FromCBOR(
+	            s.findAttribute(HeaderKeys.Algorithm)), 
+	            toBeSigned.EncodeToBytes(), signer.get(2).GetByteString());
+	}
+	
+	/**
+	 * Validate a Sign1 message with a prepared verifier.
+	 * 
+	 * @param signed  the Sign1 message
+	 * @param verifier  the prepared verifier for the key
+	 * @param COSE_CWT  the raw bytes of the Sign1 message
+	 * @return  true if the signature is valid
+	 * @throws CoseException 
+	 */
+	private static boolean validateSign1(Sign1Message signed, 
+	        EcVerifier verifier, byte[] COSE_CWT) throws CoseException {
+	    //Build the Sig_structure from the raw message, the COSE library
+	    //only verifies with a OneKey
+	    CBORObject msg = CBORObject.DecodeFromBytes(COSE_CWT).Untag();
+	    byte[] external = signed.getExternal();
+	    CBORObject toBeSigned = CBORObject.NewArray();
+	    toBeSigned.Add("Signature1");
+	    toBeSigned.Add(msg.get(0));
+	    toBeSigned.Add(external == null ? new byte[0] : external);
+	    toBeSigned.Add(msg.get(2));
+	    return verifier.verify(AlgorithmID.FromCBOR(
+	            signed.findAttribute(HeaderKeys.Algorithm)), 
+	            toBeSigned.EncodeToBytes(), msg.get(3).GetByteString());
+	}
+	
+	/**
+	 * Try to decrypt a message with one recipient key.
+	 * 
+	 * @param m  the message
+	 * @param r  the recipient with the key set
+	 * @return  the plaintext or null if the key does not decrypt the message
+	 */
 	private static byte[] processDecrypt(EncryptMessage m, Recipient r) {
 		try {
 			return m.decrypt(r);
-		} catch (CoseException e) {
-		    e.printStackTrace();
-			return null;
-		} catch (InvalidCipherTextException e) {
-		    e.printStackTrace();
+		} catch (CoseException | InvalidCipherTextException e) {
+		    //A wrong key is expected while trying candidates
 			return null;
 		}
 	}
 	
 	
 	/**
-	 * Process a CBORObject containing a Map of claims.
+	 * Process a CBORObject containing a Map of claims, within the default 
+	 * limits.
 	 * 
 	 * @param content  the CBOR Map of claims
 	 * @return  the mapping of unabbreviated claim names to values.
@@ -208,37 +761,111 @@ public class CWT implements AccessToken {
 	 */
 	public static Map<String, CBORObject> parseClaims(CBORObject content) 
 				throws AceException {
+	    return parseClaims(content, CwtLimits.DEFAULT);
+	}
+	
+	/**
+	 * Process a CBORObject containing a Map of claims, within some limits.
+	 * 
+	 * @param content  the CBOR Map of claims
+	 * @param limits  the bounds on the number of claims and their nesting
+	 * @return  the mapping of unabbreviated claim names to values.
+	 * @throws AceException
+	 */
+	public static Map<String, CBORObject> parseClaims(CBORObject content, 
+	        CwtLimits limits) throws AceException {
+	    limits.checkClaims(content);
+	    return toClaims(content);
+	}
+	
+	/**
+	 * Converts a CBOR Map of claims to a map by name.
+	 * 
+	 * @param content  the CBOR Map of claims
+	 * @return  the mapping of unabbreviated claim names to values.
+	 * @throws AceException
+	 */
+	private static Map<String, CBORObject> toClaims(CBORObject content) 
+	        throws AceException {
 		if (content.getType() != CBORType.Map) {
 			throw new AceException("This is not a CWT");
 		}
 		Map<String, CBORObject> claims = new HashMap<>();
 		for (CBORObject key : content.getKeys()) {
-			switch(key.getType()) {
-			
-				case TextString :
-					claims.put(key.AsString(), content.get(key));						
-					break;
-					
-				case Number :
-					int abbrev = key.AsInt32();
-					if (abbrev < Constants.ABBREV.length) {
-						claims.put(Constants.ABBREV[abbrev], 
-								content.get(key));
-					} else {
-						throw new AceException(
-								"Unknown claim abbreviation: " + abbrev);
-					}
-					break;
-					
-				default :
-					throw new AceException(
-							"Invalid key type in CWT claims map");
-			
-			}
+			claims.put(getClaimName(key), content.get(key));
 		}
 		return claims;
 	}
 	
+	/**
+	 * Checks that a CBORObject is a Map of claims that parseClaims() would 
+	 * accept, without building the map of claims.
+	 * 
+	 * @param content  the CBOR Map of claims
+	 * @return  the content
+	 * @throws AceException
+	 */
+	private static CBORObject checkClaims(CBORObject content) 
+	        throws AceException {
+	    if (content.getType() != CBORType.Map) {
+	        throw new AceException("This is not a CWT");
+	    }
+	    for (CBORObject key : content.getKeys()) {
+	        getClaimName(key);
+	    }
+	    return content;
+	}
+	
+	/**
+	 * Get the unabbreviated name of a key in a CBOR Map of claims.
+	 * 
+	 * @param key  the key
+	 * @return  the claim name
+	 * @throws AceException  if the key is neither a text string nor a 
+	 *     registered abbreviation
+	 */
+	private static String getClaimName(CBORObject key) throws AceException {
+		switch(key.getType()) {
+		
+			case TextString :
+				return key.AsString();
+				
+			case Number :
+				int abbrev = key.AsInt32();
+				String name = LabelRegistry.getName(abbrev);
+				if (name != null) {
+					return name;
+				}
+				throw new AceException(
+						"Unknown claim abbreviation: " + abbrev);
+				
+			default :
+				throw new AceException(
+						"Invalid key type in CWT claims map");
+		
+		}
+	}
+	
+	/**
+	 * @return  the claims, materialized from the payload if necessary
+	 */
+	private ClaimSet claims() {
+	    ClaimSet set = this.claims;
+	    if (set == null) {
+	        set = new ClaimSet();
+	        try {
+	            for (CBORObject key : this.payload.getKeys()) {
+	                set.put(getClaimName(key), this.payload.get(key));
+	            }
+	        } catch (AceException e) {
+	            //Cannot happen, the payload has passed checkClaims()
+	            throw new IllegalStateException(e);
+	        }
+	        this.claims = set;
+	    }
+	    return set;
+	}
+	
 	/**
 	 * Encodes this CWT as CBOR Map without crypto wrapper.
 	 * 
@@ -246,7 +873,21 @@ public class CWT implements AccessToken {
 	 */
 	@Override
 	public CBORObject encode() {
-        return Constants.abbreviate(this.claims);
+        return claims().encode();
+	}
+	
+	/**
+	 * Encodes the claims of this CWT as the payload of a COSE message.
+	 * 
+	 * @param ctx  the crypto context the payload is for
+	 * @return  the encoded claims
+	 */
+	private byte[] encodePayload(CwtCryptoCtx ctx) {
+	    CwtMetrics m = metrics;
+	    long start = startTimer(m);
+	    byte[] payload = encode().EncodeToBytes();
+	    stopTimer(m, CwtMetrics.Stage.ENCODE, ctx.getMessageType(), start);
+	    return payload;
 	}
 	
 	/**
@@ -263,14 +904,183 @@ public class CWT implements AccessToken {
 	public CBORObject encode(CwtCryptoCtx ctx) 
 	        throws IllegalStateException, InvalidCipherTextException, 
 	               CoseException, AceException {
-		CBORObject map = encode();
+		return encodeCOSE(encodePayload(ctx), ctx);
+	}
+	
+	/**
+	 * Encodes this CWT with a COSE crypto wrapper directly into a buffer, 
+	 * starting at its position.  Prepared contexts write the message 
+	 * without building it as a CBOR object first.
+	 * 
+	 * @param ctx  the crypto context
+	 * @param out  the buffer to write to, its position is advanced past the
+	 *     encoded token
+	 * @return  the number of bytes written
+	 * @throws BufferOverflowException  if the token does not fit, nothing 
+	 *     is written in that case
+	 * @throws IllegalStateException 
+	 * @throws InvalidCipherTextException 
+	 * @throws CoseException 
+	 * @throws AceException 
+	 */
+	public int encode(CwtCryptoCtx ctx, ByteBuffer out) 
+	        throws IllegalStateException, InvalidCipherTextException, 
+	               CoseException, AceException {
+	    return encodeCOSE(encodePayload(ctx), ctx, out);
+	}
+	
+	/**
+	 * Wraps an encoded claims map in a COSE crypto wrapper and writes it 
+	 * into a buffer.
+	 * 
+	 * @param payload  the encoded claims
+	 * @param ctx  the crypto context
+	 * @param out  the buffer to write to
+	 * @return  the number of bytes written
+	 * @throws IllegalStateException 
+	 * @throws InvalidCipherTextException 
+	 * @throws CoseException 
+	 * @throws AceException 
+	 */
+	static int encodeCOSE(byte[] payload, CwtCryptoCtx ctx, ByteBuffer out) 
+	        throws IllegalStateException, InvalidCipherTextException, 
+	               CoseException, AceException {
+	    byte[][] parts = encodeCOSEParts(payload, ctx);
+	    PreparedCrypto.put(out, parts);
+	    return PreparedCrypto.length(parts);
+	}
+	
+	/**
+	 * Encodes this CWT with a COSE crypto wrapper as bytes.  Prepared 
+	 * contexts serialise the message straight into an array of the exact 
+	 * size, without building it as a CBOR object first.
+	 * 
+	 * @param ctx  the crypto context
+	 * @return  the encoded COSE object
+	 * @throws IllegalStateException 
+	 * @throws InvalidCipherTextException 
+	 * @throws CoseException 
+	 * @throws AceException 
+	 */
+	public byte[] encodeToBytes(CwtCryptoCtx ctx) 
+	        throws IllegalStateException, InvalidCipherTextException, 
+	               CoseException, AceException {
+	    byte[][] parts = encodeCOSEParts(encodePayload(ctx), ctx);
+	    return parts.length == 1 ? parts[0] : PreparedCrypto.concat(parts);
+	}
+	
+	/**
+	 * Encodes this CWT with a COSE crypto wrapper and writes it to a stream.
+	 * 
+	 * @param out  the stream to write to
+	 * @param ctx  the crypto context
+	 * @throws IOException 
+	 * @throws IllegalStateException 
+	 * @throws InvalidCipherTextException 
+	 * @throws CoseException 
+	 * @throws AceException 
+	 */
+	public void encodeTo(OutputStream out, CwtCryptoCtx ctx) 
+	        throws IOException, IllegalStateException, 
+	               InvalidCipherTextException, CoseException, AceException {
+	    for (byte[] part : encodeCOSEParts(encodePayload(ctx), ctx)) {
+	        out.write(part);
+	    }
+	}
+	
+	/**
+	 * Wraps an encoded claims map in a COSE crypto wrapper and returns the
+	 * encoded message in parts.
+	 * 
+	 * @param payload  the encoded claims
+	 * @param ctx  the crypto context
+	 * @return  the parts of the encoded COSE object, in order
+	 * @throws IllegalStateException 
+	 * @throws InvalidCipherTextException 
+	 * @throws CoseException 
+	 * @throws AceException 
+	 */
+	private static byte[][] encodeCOSEParts(byte[] payload, CwtCryptoCtx ctx) 
+	        throws IllegalStateException, InvalidCipherTextException, 
+	               CoseException, AceException {
+	    CwtMetrics m = metrics;
+	    MessageTag type = ctx.getMessageType();
+	    m.payloadSize(type, payload.length);
+	    boolean success = false;
+	    try {
+	        long start = startTimer(m);
+	        PreparedCrypto prepared = ctx.getPrepared();
+	        byte[][] parts = (prepared != null) 
+	                ? prepared.encodeParts(payload)
+	                : new byte[][] {wrapCOSE(payload, ctx).EncodeToBytes()};
+	        stopTimer(m, CwtMetrics.Stage.PROTECT, type, start);
+	        success = true;
+	        return parts;
+	    } finally {
+	        m.encoded(type, success);
+	    }
+	}
+	
+	/**
+	 * Wraps an encoded claims map in a COSE crypto wrapper.
+	 * 
+	 * @param payload  the encoded claims
+	 * @param ctx  the crypto context
+	 * @return  the COSE object
+	 * @throws IllegalStateException 
+	 * @throws InvalidCipherTextException 
+	 * @throws CoseException 
+	 * @throws AceException 
+	 */
+	static CBORObject encodeCOSE(byte[] payload, CwtCryptoCtx ctx) 
+	        throws IllegalStateException, InvalidCipherTextException, 
+	               CoseException, AceException {
+	    CwtMetrics m = metrics;
+	    MessageTag type = ctx.getMessageType();
+	    m.payloadSize(type, payload.length);
+	    boolean success = false;
+	    try {
+	        long start = startTimer(m);
+	        PreparedCrypto prepared = ctx.getPrepared();
+	        CBORObject msg = (prepared != null) 
+	                ? prepared.encode(payload) : wrapCOSE(payload, ctx);
+	        stopTimer(m, CwtMetrics.Stage.PROTECT, type, start);
+	        success = true;
+	        return msg;
+	    } finally {
+	        m.encoded(type, success);
+	    }
+	}
+	
+	/**
+	 * Wraps an encoded claims map in a COSE crypto wrapper using the COSE
+	 * library.
+	 * 
+	 * @param payload  the encoded claims
+	 * @param ctx  the crypto context
+	 * @return  the COSE object
+	 * @throws IllegalStateException 
+	 * @throws InvalidCipherTextException 
+	 * @throws CoseException 
+	 * @throws AceException 
+	 */
+	private static CBORObject wrapCOSE(byte[] payload, CwtCryptoCtx ctx) 
+	        throws IllegalStateException, InvalidCipherTextException, 
+	               CoseException, AceException {
 		switch (ctx.getMessageType()) {
 		
 		case Encrypt0:
+			if (ctx.getKey() == null) {
+			    throw new AceException("No key in crypto context");
+			}
 			Encrypt0Message coseE0 = new Encrypt0Message();
 			coseE0.addAttribute(HeaderKeys.Algorithm, ctx.getAlg(), 
 					Attribute.PROTECTED);
-			coseE0.SetContent(map.EncodeToBytes());
+			if (ctx.getKid() != null) {
+			    coseE0.addAttribute(HeaderKeys.KID, ctx.getKid(), 
+			            Attribute.UNPROTECTED);
+			}
+			coseE0.SetContent(payload);
 			coseE0.encrypt(ctx.getKey());
 			return coseE0.EncodeToCBORObject();		
 			
@@ -278,7 +1088,7 @@ public class CWT implements AccessToken {
 			EncryptMessage coseE = new EncryptMessage();
 			coseE.addAttribute(HeaderKeys.Algorithm, ctx.getAlg(), 
 					Attribute.PROTECTED);
-			coseE.SetContent(map.EncodeToBytes());
+			coseE.SetContent(payload);
 			for (Recipient r : ctx.getRecipients()) {
 				coseE.addRecipient(r);
 			}
@@ -295,7 +1105,12 @@ public class CWT implements AccessToken {
 			Sign1Message coseS1 = new Sign1Message();
 			coseS1.addAttribute(HeaderKeys.Algorithm, ctx.getAlg(), 
 						Attribute.PROTECTED);
-			coseS1.SetContent(map.EncodeToBytes());
+			CBORObject signerKid = ctx.getPrivateKey().get(KeyKeys.KeyId);
+			if (signerKid != null) {
+			    coseS1.addAttribute(HeaderKeys.KID, signerKid, 
+			            Attribute.UNPROTECTED);
+			}
+			coseS1.SetContent(payload);
 			coseS1.sign(ctx.getPrivateKey());
 			return coseS1.EncodeToCBORObject();	
 			
@@ -303,7 +1118,7 @@ public class CWT implements AccessToken {
 			SignMessage coseS = new SignMessage();
 			coseS.addAttribute(HeaderKeys.Algorithm, ctx.getAlg(), 
 					Attribute.PROTECTED);
-			coseS.SetContent(map.EncodeToBytes());
+			coseS.SetContent(payload);
 			for (Signer s : ctx.getSigners()) {
 				coseS.AddSigner(s);
 			}
@@ -314,7 +1129,7 @@ public class CWT implements AccessToken {
 			MACMessage coseM = new MACMessage();
 			coseM.addAttribute(HeaderKeys.Algorithm, ctx.getAlg(), 
 					Attribute.PROTECTED);
-			coseM.SetContent(map.EncodeToBytes());
+			coseM.SetContent(payload);
 			for (Recipient r : ctx.getRecipients()) {
 				coseM.addRecipient(r);
 			}
@@ -328,10 +1143,17 @@ public class CWT implements AccessToken {
 			return coseM.EncodeToCBORObject();
 			
 		case MAC0:
+			if (ctx.getKey() == null) {
+			    throw new AceException("No key in crypto context");
+			}
 			MAC0Message coseM0 = new MAC0Message();
 			coseM0.addAttribute(HeaderKeys.Algorithm, ctx.getAlg(), 
 					Attribute.PROTECTED);
-			coseM0.SetContent(map.EncodeToBytes());
+			if (ctx.getKid() != null) {
+			    coseM0.addAttribute(HeaderKeys.KID, ctx.getKid(), 
+			            Attribute.UNPROTECTED);
+			}
+			coseM0.SetContent(payload);
 			coseM0.Create(ctx.getKey());
 			return coseM0.EncodeToCBORObject();
 			
@@ -342,6 +1164,25 @@ public class CWT implements AccessToken {
 	}
 	
 	
+	/**
+	 * Encodes this CWT with a COSE crypto wrapper on the given executor.
+	 *
+	 * @param ctx  the crypto context.
+	 * @param executor  the executor to run the crypto processing on
+	 * @return  a future of the claims as CBOR Map, that completes 
+	 *     exceptionally with the exception encode() would have thrown
+	 */
+	public CompletableFuture<CBORObject> encodeAsync(final CwtCryptoCtx ctx, 
+	        Executor executor) {
+	    return callAsync(new Callable<CBORObject>() {
+	        @Override
+	        public CBORObject call() throws Exception {
+	            return encode(ctx);
+	        }
+	    }, executor);
+	}
+	
+	
 	/**
 	 * Returns the value of a claim referenced by name or 
 	 * <emph>null</emph> if this claim is not in the CWT.
@@ -350,21 +1191,95 @@ public class CWT implements AccessToken {
 	 * @return  the value of the claim or null.
 	 */
 	public CBORObject getClaim(String name) {
-		return this.claims.get(name);
+	    ClaimSet set = this.claims;
+	    if (set != null) {
+	        return set.get(name);
+	    }
+	    int label = LabelRegistry.getLabel(name);
+	    if (label != LabelRegistry.UNKNOWN) {
+	        CBORObject value = this.payload.get(label < labelKeys.length 
+	                ? labelKeys[label] : CBORObject.FromObject(label));
+	        if (value != null) {
+	            return value;
+	        }
+	    }
+	    return this.payload.get(name);
 	}
 	
 	/**
-	 * @return  a list of all claims in this CWT.
+	 * @return  a read-only view of the names of all claims in this CWT.
 	 */
 	public Set<String> getClaimKeys() {
-		return this.claims.keySet();
+		return claims().asMap().keySet();
 	}
 	
 	/**
-	 * @return a copy of the claims in this CWT.
+	 * @return  a read-only view of the claims in this CWT.
 	 */
 	public Map<String, CBORObject> getClaims() {
-	    return new HashMap<>(this.claims);
+	    return claims().asMap();
+	}
+	
+	/**
+	 * @return  a new builder for a CWT
+	 */
+	public static Builder builder() {
+	    return new Builder();
+	}
+	
+	/**
+	 * Builds a CWT by writing the claims directly into its final storage.
+	 * A builder can only build one CWT.
+	 */
+	public static final class Builder {
+	    
+	    private ClaimSet claims = new ClaimSet();
+	    
+	    private Builder() {
+	    }
+	    
+	    /**
+	     * Adds a claim, replacing any claim with the same name.
+	     * 
+	     * @param name  the name of the claim
+	     * @param value  the value of the claim, null removes the claim
+	     * @return  this builder
+	     */
+	    public Builder claim(String name, CBORObject value) {
+	        if (this.claims == null) {
+	            throw new IllegalStateException("CWT already built");
+	        }
+	        if (name == null) {
+	            throw new IllegalArgumentException("Claim name is null");
+	        }
+	        this.claims.put(name, value);
+	        return this;
+	    }
+	    
+	    /**
+	     * Adds all claims of a map, replacing any claims with the same names.
+	     * 
+	     * @param claims  the claims by name
+	     * @return  this builder
+	     */
+	    public Builder claims(Map<String, CBORObject> claims) {
+	        for (Map.Entry<String, CBORObject> e : claims.entrySet()) {
+	            claim(e.getKey(), e.getValue());
+	        }
+	        return this;
+	    }
+	    
+	    /**
+	     * @return  the CWT with the claims added so far
+	     */
+	    public CWT build() {
+	        if (this.claims == null) {
+	            throw new IllegalStateException("CWT already built");
+	        }
+	        ClaimSet set = this.claims;
+	        this.claims = null;
+	        return new CWT(set, null);
+	    }
 	}
 	
 	/**
@@ -376,12 +1291,15 @@ public class CWT implements AccessToken {
 	 */
 	@Override
 	public boolean isValid(long now) {
+	    if (this.timesDecoded) {
+	        return this.nbf <= now && this.exp >= now;
+	    }
 		//Check nbf and exp for the found match
-		CBORObject nbfO = this.claims.get("nbf");
+		CBORObject nbfO = getClaim("nbf");
 		if (nbfO != null &&  nbfO.AsInt64()	> now) {
 			return false;
 		}	
-		CBORObject expO = this.claims.get("exp");
+		CBORObject expO = getClaim("exp");
 		if (expO != null && expO.AsInt64() < now) {
 			//Token has expired
 			return false;
@@ -398,7 +1316,10 @@ public class CWT implements AccessToken {
 	 */
 	@Override
 	public boolean expired(long now) {
-		CBORObject expO = this.claims.get("exp");
+	    if (this.timesDecoded) {
+	        return this.exp < now;
+	    }
+		CBORObject expO = getClaim("exp");
 		if (expO != null && expO.AsInt64() < now) {
 			//Token has expired
 			return true;
@@ -406,18 +1327,55 @@ public class CWT implements AccessToken {
 		return false;		
 	}
 	
+	/**
+	 * @return  the exp claim or Long.MAX_VALUE if this CWT has none
+	 */
+	public long getExp() {
+	    return this.timesDecoded ? this.exp 
+	            : time(getClaim("exp"), Long.MAX_VALUE);
+	}
+	
+	/**
+	 * @return  the nbf claim or Long.MIN_VALUE if this CWT has none
+	 */
+	public long getNbf() {
+	    return this.timesDecoded ? this.nbf 
+	            : time(getClaim("nbf"), Long.MIN_VALUE);
+	}
+	
+	/**
+	 * @return  the iat claim or Long.MIN_VALUE if this CWT has none
+	 */
+	public long getIat() {
+	    return this.timesDecoded ? this.iat 
+	            : time(getClaim("iat"), Long.MIN_VALUE);
+	}
+	
 	@Override
 	public String toString() {
-	    return this.claims.toString();
+	    return claims().toString();
 	}
 
     @Override
     public String getCti() throws AceException {
-        CBORObject cti = this.claims.get("cti");
+        return Base64.getEncoder().encodeToString(getCtiBytes());
+    }
+    
+    /**
+     * @return  a copy of the raw bytes of the cti
+     * 
+     * @throws AceException  if the token has no cti or it is not a byte 
+     *     string
+     */
+    public byte[] getCtiBytes() throws AceException {
+        CBORObject cti = getClaim("cti");
         if (cti == null) {
             throw new AceException("Token has no cti");
         }
-        return new String(cti.GetByteString());
+        if (cti.getType() != CBORType.ByteString) {
+            throw new AceException("cti is not a byte string");
+        }
+        return cti.GetByteString().clone();
     }
 	
 }
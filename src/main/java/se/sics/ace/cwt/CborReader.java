@@ -0,0 +1,528 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+/**
+ * A minimal streaming reader over CBOR encoded bytes, that allows to pick 
+ * out single data items and skip over the rest without building 
+ * <code>CBORObject</code>s.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+class CborReader {
+    
+    /**
+     * Major type 0: unsigned integer
+     */
+    static final int UNSIGNED = 0;
+    
+    /**
+     * Major type 1: negative integer
+     */
+    static final int NEGATIVE = 1;
+    
+    /**
+     * Major type 2: byte string
+     */
+    static final int BYTES = 2;
+    
+    /**
+     * Major type 3: text string
+     */
+    static final int TEXT = 3;
+    
+    /**
+     * Major type 4: array
+     */
+    static final int ARRAY = 4;
+    
+    /**
+     * Major type 5: map
+     */
+    static final int MAP = 5;
+    
+    /**
+     * Major type 6: tag
+     */
+    static final int TAG = 6;
+    
+    /**
+     * Major type 7: floats and simple values
+     */
+    static final int SIMPLE = 7;
+    
+    /**
+     * Returned as length of indefinite length items
+     */
+    static final long INDEFINITE = -1;
+    
+    /**
+     * The maximum nesting depth accepted by skip()
+     */
+    static final int MAX_DEPTH = 128;
+    
+    private static final int BREAK = 0xff;
+    
+    private final byte[] buf;
+    
+    private final int end;
+    
+    private int pos;
+    
+    /**
+     * Constructor.
+     * 
+     * @param buf  the buffer containing the CBOR data
+     * @param offset  the offset of the data in the buffer
+     * @param length  the length of the data
+     */
+    CborReader(byte[] buf, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+    
+    /**
+     * @return  the current position in the buffer
+     */
+    int position() {
+        return this.pos;
+    }
+    
+    /**
+     * @param start  the position of the region
+     * @param len  the length of the region
+     * @return  a reader for a region of the same buffer
+     */
+    CborReader region(int start, int len) {
+        return new CborReader(this.buf, start, len);
+    }
+    
+    /**
+     * @return  true if there are more bytes to read
+     */
+    boolean hasMore() {
+        return this.pos < this.end;
+    }
+    
+    /**
+     * @return  the major type of the next data item
+     * @throws AceException  if there is no more data
+     */
+    int peekMajorType() throws AceException {
+        need(1);
+        return (this.buf[this.pos] & 0xff) >>> 5;
+    }
+    
+    /**
+     * @return  true if the next byte is the break code ending an indefinite
+     *     length item
+     * @throws AceException  if there is no more data
+     */
+    boolean isBreak() throws AceException {
+        need(1);
+        return (this.buf[this.pos] & 0xff) == BREAK;
+    }
+    
+    /**
+     * Consumes a break code.
+     * 
+     * @throws AceException  if the next byte is not a break code
+     */
+    void readBreak() throws AceException {
+        if (!isBreak()) {
+            throw new AceException("Malformed CBOR: expected break");
+        }
+        this.pos++;
+    }
+    
+    /**
+     * Reads the header of a map.
+     * 
+     * @return  the number of key/value pairs or INDEFINITE
+     * @throws AceException  if the next item is not a map
+     */
+    long readMapHeader() throws AceException {
+        return readCount(MAP);
+    }
+    
+    /**
+     * Reads the header of an array.
+     * 
+     * @return  the number of elements or INDEFINITE
+     * @throws AceException  if the next item is not an array
+     */
+    long readArrayHeader() throws AceException {
+        return readCount(ARRAY);
+    }
+    
+    /**
+     * Reads the header of an array or map.
+     * 
+     * @param type  the major type
+     * @return  the number of entries or INDEFINITE
+     * @throws AceException  if the next item is not of the type or the 
+     *     count does not fit in the remaining bytes
+     */
+    private long readCount(int type) throws AceException {
+        long count = readHeader(type);
+        //Every entry takes at least one byte
+        if (count != INDEFINITE 
+                && (count < 0 || count > this.end - this.pos)) {
+            throw new AceException("Malformed CBOR: bad length");
+        }
+        return count;
+    }
+    
+    /**
+     * Reads a tag number, the tagged item follows.
+     * 
+     * @return  the tag number
+     * @throws AceException  if the next item is not a tag
+     */
+    long readTag() throws AceException {
+        long tag = readHeader(TAG);
+        if (tag < 0) {
+            throw new AceException("Tag out of range");
+        }
+        return tag;
+    }
+    
+    /**
+     * Reads the header of a definite length byte string, the content 
+     * starts at position() and can be skipped with advance().
+     * 
+     * @return  the length of the byte string
+     * @throws AceException  if the next item is not a definite length byte
+     *     string
+     */
+    int readByteStringHeader() throws AceException {
+        return readStringHeader(BYTES);
+    }
+    
+    /**
+     * Reads the header of a definite length text string, the UTF-8 content 
+     * starts at position() and can be skipped with advance().
+     * 
+     * @return  the length of the text string in bytes
+     * @throws AceException  if the next item is not a definite length text
+     *     string
+     */
+    int readTextHeader() throws AceException {
+        return readStringHeader(TEXT);
+    }
+    
+    /**
+     * Reads a definite length text string and compares it to the given 
+     * UTF-8 bytes.
+     * 
+     * @param expected  the expected UTF-8 bytes
+     * @return  true if the text string is equal to the expected bytes
+     * @throws AceException  if the next item is not a definite length text
+     *     string
+     */
+    boolean readTextEquals(byte[] expected) throws AceException {
+        int len = readTextHeader();
+        int start = this.pos;
+        this.pos += len;
+        return regionEquals(start, len, expected);
+    }
+    
+    /**
+     * Compares a region of the buffer to the given bytes.
+     * 
+     * @param start  the start of the region
+     * @param len  the length of the region
+     * @param expected  the expected bytes
+     * @return  true if the region is equal to the expected bytes
+     */
+    boolean regionEquals(int start, int len, byte[] expected) {
+        if (len != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (this.buf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private int readStringHeader(int type) throws AceException {
+        long len = readHeader(type);
+        if (len < 0 || len > this.end - this.pos) {
+            throw new AceException("Malformed CBOR: bad string");
+        }
+        return (int)len;
+    }
+    
+    /**
+     * Moves the position forward.
+     * 
+     * @param n  the number of bytes to move
+     * @throws AceException  if there are not enough bytes left
+     */
+    void advance(int n) throws AceException {
+        need(n);
+        this.pos += n;
+    }
+    
+    /**
+     * Reads an integer of major type 0 or 1.
+     * 
+     * @return  the integer
+     * @throws AceException  if the next item is not an integer or does not 
+     *     fit into a long
+     */
+    long readInt() throws AceException {
+        int type = peekMajorType();
+        if (type != UNSIGNED && type != NEGATIVE) {
+            throw new AceException("Malformed CBOR: expected integer");
+        }
+        long val = readHeader(type);
+        if (val < 0) {
+            throw new AceException("Integer out of range");
+        }
+        return type == UNSIGNED ? val : -1 - val;
+    }
+    
+    /**
+     * Reads a definite length text string.
+     * 
+     * @return  the string
+     * @throws AceException  if the next item is not a definite length text 
+     *     string
+     */
+    String readText() throws AceException {
+        int len = readTextHeader();
+        String ret = new String(this.buf, this.pos, len, Constants.charset);
+        this.pos += len;
+        return ret;
+    }
+    
+    /**
+     * Reads a NumericDate, i.e. an integer or floating point number of 
+     * seconds, optionally tagged with tag 1. Fractions are truncated.
+     * 
+     * @return  the date as a long
+     * @throws AceException  if the next item is not a NumericDate
+     */
+    long readNumericDate() throws AceException {
+        int type = peekMajorType();
+        if (type == TAG) {
+            if (readHeader(TAG) != 1) {
+                throw new AceException("Malformed CBOR: unexpected tag");
+            }
+            type = peekMajorType();
+        }
+        if (type == UNSIGNED || type == NEGATIVE) {
+            return readInt();
+        }
+        if (type != SIMPLE) {
+            throw new AceException("Malformed CBOR: expected NumericDate");
+        }
+        double val;
+        switch (this.buf[this.pos++] & 0xff) {
+        case 0xf9:
+            int half = (int)readBytes(2);
+            int exp = (half >>> 10) & 0x1f;
+            int mant = half & 0x3ff;
+            if (exp == 0x1f) {
+                val = (mant == 0) ? Double.POSITIVE_INFINITY : Double.NaN;
+            } else if (exp == 0) {
+                val = Math.scalb((double)mant, -24);
+            } else {
+                val = Math.scalb((double)(mant | 0x400), exp - 25);
+            }
+            if ((half & 0x8000) != 0) {
+                val = -val;
+            }
+            break;
+        case 0xfa:
+            val = Float.intBitsToFloat((int)readBytes(4));
+            break;
+        case 0xfb:
+            val = Double.longBitsToDouble(readBytes(8));
+            break;
+        default:
+            this.pos--;
+            throw new AceException("Malformed CBOR: expected NumericDate");
+        }
+        if (Double.isNaN(val)) {
+            throw new AceException("Malformed CBOR: NumericDate is NaN");
+        }
+        return (long)val;
+    }
+    
+    /**
+     * Skips the next data item, including all nested items.
+     * 
+     * @throws AceException  if the data is malformed or nested deeper than 
+     *     MAX_DEPTH
+     */
+    void skip() throws AceException {
+        skip(MAX_DEPTH);
+    }
+    
+    /**
+     * Skips the next data item, including all nested items.
+     * 
+     * @param depth  the maximum nesting depth, a single scalar has depth 1
+     * @throws AceException  if the data is malformed or nested deeper than 
+     *     depth
+     */
+    void skip(int depth) throws AceException {
+        if (depth <= 0) {
+            throw new AceException("CBOR nesting too deep");
+        }
+        int type = peekMajorType();
+        long val = readHeader(type);
+        switch (type) {
+        case UNSIGNED:
+        case NEGATIVE:
+        case SIMPLE:
+            return;
+        case BYTES:
+        case TEXT:
+            if (val == INDEFINITE) {
+                while (!isBreak()) {
+                    if (peekMajorType() != type) {
+                        throw new AceException(
+                                "Malformed CBOR: bad string chunk");
+                    }
+                    skip(depth - 1);
+                }
+                this.pos++;
+            } else {
+                if (val < 0 || val > this.end - this.pos) {
+                    throw new AceException("Malformed CBOR: truncated");
+                }
+                this.pos += val;
+            }
+            return;
+        case ARRAY:
+        case MAP:
+            long items = (type == MAP) ? 2 : 1;
+            if (val == INDEFINITE) {
+                while (!isBreak()) {
+                    for (int i = 0; i < items; i++) {
+                        skip(depth - 1);
+                    }
+                }
+                this.pos++;
+            } else {
+                //Every entry takes at least one byte
+                if (val < 0 || val > this.end - this.pos) {
+                    throw new AceException("Malformed CBOR: truncated");
+                }
+                for (long i = 0; i < val * items; i++) {
+                    skip(depth - 1);
+                }
+            }
+            return;
+        case TAG:
+            skip(depth - 1);
+            return;
+        default:
+            throw new AceException("Malformed CBOR: unknown major type");
+        }
+    }
+    
+    /**
+     * Reads the initial byte and argument of a data item. For major type 7 
+     * the argument bytes are skipped.
+     * 
+     * @param expected  the expected major type
+     * @return  the argument, INDEFINITE for indefinite length items, or a 
+     *     negative value other than INDEFINITE if the argument does not fit 
+     *     into a long
+     * @throws AceException
+     */
+    private long readHeader(int expected) throws AceException {
+        need(1);
+        int initial = this.buf[this.pos] & 0xff;
+        if (initial >>> 5 != expected) {
+            throw new AceException("Malformed CBOR: unexpected major type");
+        }
+        this.pos++;
+        int info = initial & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+        case 24:
+            need(1);
+            return this.buf[this.pos++] & 0xff;
+        case 25:
+            return readBytes(2);
+        case 26:
+            return readBytes(4);
+        case 27:
+            long val = readBytes(8);
+            //Map values above Long.MAX_VALUE away from INDEFINITE
+            return val < 0 ? Long.MIN_VALUE : val;
+        case 31:
+            if (expected == UNSIGNED || expected == NEGATIVE 
+                    || expected == TAG) {
+                throw new AceException("Malformed CBOR: bad indefinite item");
+            }
+            if (expected == SIMPLE) {
+                throw new AceException("Malformed CBOR: unexpected break");
+            }
+            return INDEFINITE;
+        default:
+            throw new AceException("Malformed CBOR: reserved value");
+        }
+    }
+    
+    private long readBytes(int n) throws AceException {
+        need(n);
+        long val = 0;
+        for (int i = 0; i < n; i++) {
+            val = (val << 8) | (this.buf[this.pos++] & 0xff);
+        }
+        return val;
+    }
+    
+    private void need(int n) throws AceException {
+        if (n > this.end - this.pos) {
+            throw new AceException("Malformed CBOR: truncated");
+        }
+    }
+}
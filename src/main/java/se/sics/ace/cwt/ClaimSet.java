@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+
+import se.sics.ace.Constants;
+import se.sics.ace.LabelRegistry;
+
+/**
+ * The claims of a CWT in compact form.  Claims with a registered label up 
+ * to <code>Constants.RS_CNF</code> are stored in an array indexed by the 
+ * label, all other claims in a map by name that is only created when 
+ * needed.
+ * 
+ * A set of claims is only modified while it is built, a CWT never changes
+ * the set it holds.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class ClaimSet {
+    
+    /**
+     * The highest label that is stored in the array
+     */
+    private static final int MAX_LABEL = Constants.RS_CNF;
+    
+    /**
+     * The names of the labels stored in the array
+     */
+    private static final String[] names = new String[MAX_LABEL + 1];
+    
+    /**
+     * Cached CBOR keys for the labels stored in the array
+     */
+    private static final CBORObject[] keys = new CBORObject[MAX_LABEL + 1];
+    
+    static {
+        for (int i = 1; i <= MAX_LABEL; i++) {
+            names[i] = LabelRegistry.getName(i);
+            keys[i] = CBORObject.FromObject(i);
+        }
+    }
+    
+    /**
+     * The claims with a label up to MAX_LABEL, null if there are none
+     */
+    private CBORObject[] registered = null;
+    
+    /**
+     * The claims without a label up to MAX_LABEL, null if there are none
+     */
+    private Map<String, CBORObject> other = null;
+    
+    /**
+     * The number of claims
+     */
+    private int size = 0;
+    
+    /**
+     * Creates an empty set of claims.
+     */
+    ClaimSet() {
+    }
+    
+    /**
+     * Creates a set of claims from a map by name.
+     * 
+     * @param claims  the claims by name
+     */
+    ClaimSet(Map<String, CBORObject> claims) {
+        for (Map.Entry<String, CBORObject> e : claims.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+    
+    /**
+     * @param name  the name of a claim
+     * @return  the index of the claim in the array or -1 if it is kept in
+     *     the map
+     */
+    private static int index(String name) {
+        int label = LabelRegistry.getLabel(name);
+        return (label > 0 && label <= MAX_LABEL) ? label : -1;
+    }
+    
+    /**
+     * Adds a claim, replacing any claim with the same name.
+     * 
+     * @param name  the name of the claim
+     * @param value  the value of the claim, null removes the claim
+     */
+    void put(String name, CBORObject value) {
+        int index = index(name);
+        CBORObject old;
+        if (index < 0) {
+            if (value == null) {
+                old = (this.other == null) ? null : this.other.remove(name);
+            } else {
+                if (this.other == null) {
+                    this.other = new HashMap<>(4);
+                }
+                old = this.other.put(name, value);
+            }
+        } else {
+            if (this.registered == null) {
+                if (value == null) {
+                    return;
+                }
+                this.registered = new CBORObject[MAX_LABEL + 1];
+            }
+            old = this.registered[index];
+            this.registered[index] = value;
+        }
+        if (old == null && value != null) {
+            this.size++;
+        } else if (old != null && value == null) {
+            this.size--;
+        }
+    }
+    
+    /**
+     * @param name  the name of a claim
+     * @return  the value of the claim or null if it is not in this set
+     */
+    CBORObject get(String name) {
+        int index = index(name);
+        if (index < 0) {
+            return this.other == null ? null : this.other.get(name);
+        }
+        return this.registered == null ? null : this.registered[index];
+    }
+    
+    /**
+     * @return  the number of claims in this set
+     */
+    int size() {
+        return this.size;
+    }
+    
+    /**
+     * @return  a read-only map view of the claims by name
+     */
+    Map<String, CBORObject> asMap() {
+        return new View();
+    }
+    
+    /**
+     * Encodes the claims as CBOR Map with abbreviated keys, like 
+     * <code>Constants.abbreviate()</code> does for a map by name.
+     * 
+     * @return  the claims as CBOR Map
+     */
+    CBORObject encode() {
+        CBORObject ret = CBORObject.NewMap();
+        if (this.other != null) {
+            for (Map.Entry<String, CBORObject> e : this.other.entrySet()) {
+                //Claims registered with a label above MAX_LABEL
+                int label = LabelRegistry.getLabel(e.getKey());
+                ret.Add(label > 0 ? CBORObject.FromObject(label) 
+                        : CBORObject.FromObject(e.getKey()), e.getValue());
+            }
+        }
+        if (this.registered != null) {
+            for (int i = 1; i <= MAX_LABEL; i++) {
+                CBORObject value = this.registered[i];
+                if (value != null) {
+                    ret.Add(keys[i], abbreviateValue(i, value));
+                }
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * @param label  the label of a claim
+     * @param value  the value of the claim
+     * @return  the value, abbreviated if it is a registered grant type or
+     *     error code
+     */
+    private static CBORObject abbreviateValue(int label, CBORObject value) {
+        if (value.getType() != CBORType.TextString) {
+            return value;
+        }
+        int abbrev = LabelRegistry.UNKNOWN;
+        if (label == Constants.GRANT_TYPE) {
+            abbrev = LabelRegistry.getGrantTypeLabel(value.AsString());
+        } else if (label == Constants.ERROR) {
+            abbrev = LabelRegistry.getErrorCodeLabel(value.AsString());
+        }
+        return abbrev >= 0 ? CBORObject.FromObject(abbrev) : value;
+    }
+    
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+    
+    /**
+     * A read-only map view of the claims.
+     */
+    private final class View extends AbstractMap<String, CBORObject> {
+        
+        @Override
+        public CBORObject get(Object key) {
+            return (key instanceof String) ? ClaimSet.this.get((String)key) 
+                    : null;
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+        
+        @Override
+        public int size() {
+            return ClaimSet.this.size;
+        }
+        
+        @Override
+        public Set<Map.Entry<String, CBORObject>> entrySet() {
+            return new AbstractSet<Map.Entry<String, CBORObject>>() {
+                @Override
+                public Iterator<Map.Entry<String, CBORObject>> iterator() {
+                    return new Entries();
+                }
+                
+                @Override
+                public int size() {
+                    return ClaimSet.this.size;
+                }
+            };
+        }
+    }
+    
+    /**
+     * Iterates over the claims in the array and then over the map.
+     */
+    private final class Entries 
+            implements Iterator<Map.Entry<String, CBORObject>> {
+        
+        private int index = nextIndex(1);
+        
+        private final Iterator<Map.Entry<String, CBORObject>> others 
+            = (ClaimSet.this.other == null) 
+                ? null : ClaimSet.this.other.entrySet().iterator();
+        
+        private int nextIndex(int from) {
+            if (ClaimSet.this.registered == null) {
+                return MAX_LABEL + 1;
+            }
+            int i = from;
+            while (i <= MAX_LABEL && ClaimSet.this.registered[i] == null) {
+                i++;
+            }
+            return i;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return this.index <= MAX_LABEL 
+                    || (this.others != null && this.others.hasNext());
+        }
+        
+        @Override
+        public Map.Entry<String, CBORObject> next() {
+            if (this.index <= MAX_LABEL) {
+                int i = this.index;
+                this.index = nextIndex(i + 1);
+                return new AbstractMap.SimpleImmutableEntry<>(names[i], 
+                        ClaimSet.this.registered[i]);
+            }
+            if (this.others == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, CBORObject> e = this.others.next();
+            return new AbstractMap.SimpleImmutableEntry<>(e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.Arrays;
+
+/**
+ * The raw bytes of a cti as map key.  Comparable so that hash maps degrade 
+ * gracefully if many ctis collide.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class Cti implements Comparable<Cti> {
+    
+    private final byte[] bytes;
+    
+    private final int hash;
+    
+    /**
+     * Constructor.
+     * 
+     * @param bytes  the raw bytes of the cti, must not be modified afterwards
+     */
+    Cti(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+    
+    /**
+     * @return  the raw bytes of the cti, must not be modified
+     */
+    byte[] getBytes() {
+        return this.bytes;
+    }
+    
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Cti)) {
+            return false;
+        }
+        return Arrays.equals(this.bytes, ((Cti)o).bytes);
+    }
+
+    @Override
+    public int compareTo(Cti o) {
+        int len = Math.min(this.bytes.length, o.bytes.length);
+        for (int i = 0; i < len; i++) {
+            int c = (this.bytes[i] & 0xff) - (o.bytes[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return this.bytes.length - o.bytes.length;
+    }
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import com.upokecenter.cbor.CBORObject;
+
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+/**
+ * Verifies and issues batches of CWTs in parallel on a 
+ * <code>ForkJoinPool</code>.
+ * 
+ * The tokens of a batch are grouped by crypto context and COSE message type
+ * before they are split among the workers, so that each worker processes 
+ * runs of tokens that use the same key and algorithm.  The results are 
+ * returned in the order of the input.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class CwtBatch {
+    
+    /**
+     * The default number of tokens below which a group is not split further
+     */
+    public static final int DEFAULT_LEAF_SIZE = 8;
+    
+    /**
+     * The pool the verification runs on
+     */
+    private final ForkJoinPool pool;
+    
+    /**
+     * The number of tokens below which a group is not split further
+     */
+    private final int leafSize;
+    
+    /**
+     * Constructor using the common pool.
+     */
+    public CwtBatch() {
+        this(ForkJoinPool.commonPool(), DEFAULT_LEAF_SIZE);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param pool  the pool to run the verification on
+     * @param leafSize  the number of tokens below which a group is not 
+     *     split further
+     */
+    public CwtBatch(ForkJoinPool pool, int leafSize) {
+        if (pool == null) {
+            throw new IllegalArgumentException("pool must not be null");
+        }
+        if (leafSize <= 0) {
+            throw new IllegalArgumentException("leafSize must be positive");
+        }
+        this.pool = pool;
+        this.leafSize = leafSize;
+    }
+    
+    /**
+     * Parse and validate the COSE wrappers of a batch of CWTs that all
+     * use the same crypto context.
+     * 
+     * @param tokens  the raw bytes of the COSE objects containing the CWTs
+     * @param ctx  the crypto context
+     * @return  the results, in the order of the tokens
+     */
+    public List<Result> processCOSE(List<byte[]> tokens, CwtCryptoCtx ctx) {
+        return processCOSE(tokens, Collections.nCopies(tokens.size(), ctx));
+    }
+    
+    /**
+     * Parse and validate the COSE wrappers of a batch of CWTs.
+     * 
+     * @param tokens  the raw bytes of the COSE objects containing the CWTs
+     * @param ctxs  the crypto contexts, one for each token
+     * @return  the results, in the order of the tokens
+     */
+    public List<Result> processCOSE(List<byte[]> tokens, 
+            List<CwtCryptoCtx> ctxs) {
+        if (tokens.size() != ctxs.size()) {
+            throw new IllegalArgumentException(
+                    "Need one crypto context per token");
+        }
+        byte[][] raw = tokens.toArray(new byte[tokens.size()][]);
+        CwtCryptoCtx[] ctx = ctxs.toArray(new CwtCryptoCtx[ctxs.size()]);
+        Result[] results = new Result[raw.length];
+        
+        //Group by context first and message type second
+        Map<CwtCryptoCtx, Map<Long, List<Integer>>> groups 
+            = new IdentityHashMap<>();
+        for (int i = 0; i < raw.length; i++) {
+            Map<Long, List<Integer>> byType = groups.get(ctx[i]);
+            if (byType == null) {
+                byType = new LinkedHashMap<>();
+                groups.put(ctx[i], byType);
+            }
+            Long type = messageType(raw[i]);
+            List<Integer> group = byType.get(type);
+            if (group == null) {
+                group = new ArrayList<>();
+                byType.put(type, group);
+            }
+            group.add(i);
+        }
+        
+        final List<ForEach> tasks = new ArrayList<>();
+        IntConsumer verify = new IntConsumer() {
+            @Override
+            public void accept(int i) {
+                try {
+                    results[i] = new Result(CWT.processCOSE(raw[i], ctx[i]), 
+                            null);
+                } catch (Exception e) {
+                    results[i] = new Result(null, e);
+                }
+            }
+        };
+        for (Map<Long, List<Integer>> byType : groups.values()) {
+            for (List<Integer> group : byType.values()) {
+                int[] indexes = new int[group.size()];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = group.get(i);
+                }
+                tasks.add(new ForEach(indexes, 0, indexes.length, 
+                        this.leafSize, verify));
+            }
+        }
+        this.pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+    
+    /**
+     * Encodes a batch of CWTs with the same crypto context in parallel.
+     * 
+     * The work that only depends on the context is done once for the 
+     * batch: MAC0 and Encrypt0 contexts that are not prepared are 
+     * prepared for the duration of the batch.  Sign, MAC and Encrypt 
+     * contexts are processed sequentially, since the COSE library keeps 
+     * per-message state in their Signer and Recipient objects.
+     * 
+     * @param claimSets  the claims of the CWTs
+     * @param ctx  the crypto context
+     * @return  the encoded CWTs and the throughput of the batch
+     */
+    public Issuance issue(List<Map<String, CBORObject>> claimSets, 
+            final CwtCryptoCtx ctx) {
+        long start = System.nanoTime();
+        //Copy for constant time access from the workers
+        final List<Map<String, CBORObject>> claims 
+            = new ArrayList<>(claimSets);
+        final CBORObject[] tokens = new CBORObject[claims.size()];
+        final Exception[] failures = new Exception[claims.size()];
+        final PreparedCrypto prepared = ctx.isPrepared() 
+                ? ctx.getPrepared() : ctx.createPrepared();
+        IntConsumer encode = new IntConsumer() {
+            @Override
+            public void accept(int i) {
+                try {
+                    if (prepared != null) {
+                        tokens[i] = prepared.encode(Constants.abbreviate(
+                                claims.get(i)).EncodeToBytes());
+                    } else {
+                        tokens[i] = new CWT(claims.get(i)).encode(ctx);
+                    }
+                } catch (Exception e) {
+                    failures[i] = e;
+                }
+            }
+        };
+        int[] indexes = new int[claims.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        switch (ctx.getMessageType()) {
+        case Sign:
+        case MAC:
+        case Encrypt:
+            for (int i : indexes) {
+                encode.accept(i);
+            }
+            break;
+        default:
+            this.pool.invoke(new ForEach(indexes, 0, indexes.length, 
+                    this.leafSize, encode));
+        }
+        return new Issuance(tokens, failures, System.nanoTime() - start);
+    }
+    
+    /**
+     * Get the COSE message type from the tag of a raw token, without
+     * decoding it.
+     * 
+     * @param token  the raw token
+     * @return  the tag number or -1 if the token is not tagged
+     */
+    private static Long messageType(byte[] token) {
+        try {
+            CborReader reader = new CborReader(token, 0, token.length);
+            if (reader.peekMajorType() == CborReader.TAG) {
+                return reader.readTag();
+            }
+        } catch (AceException e) {
+            //Malformed, processCOSE will report it
+        }
+        return -1L;
+    }
+    
+    /**
+     * Runs a body for a range of indexes, splitting the range if it is 
+     * larger than the leaf size.
+     */
+    private static final class ForEach extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+
+        private final int[] indexes;
+        
+        private final int from;
+        
+        private final int to;
+        
+        private final int leafSize;
+        
+        private final IntConsumer body;
+        
+        ForEach(int[] indexes, int from, int to, int leafSize, 
+                IntConsumer body) {
+            this.indexes = indexes;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= this.leafSize) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.body.accept(this.indexes[i]);
+                }
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new ForEach(this.indexes, this.from, mid, 
+                    this.leafSize, this.body),
+                    new ForEach(this.indexes, mid, this.to, 
+                            this.leafSize, this.body));
+        }
+    }
+    
+    /**
+     * The result of verifying a single token of a batch.
+     */
+    public static final class Result {
+        
+        private final CWT token;
+        
+        private final Exception failure;
+        
+        Result(CWT token, Exception failure) {
+            this.token = token;
+            this.failure = failure;
+        }
+        
+        /**
+         * @return  true if the token was verified
+         */
+        public boolean isVerified() {
+            return this.token != null;
+        }
+        
+        /**
+         * @return  the verified CWT or null if verification failed
+         */
+        public CWT getToken() {
+            return this.token;
+        }
+        
+        /**
+         * @return  the reason verification failed or null if it succeeded
+         */
+        public Exception getFailure() {
+            return this.failure;
+        }
+        
+        @Override
+        public String toString() {
+            return isVerified() ? this.token.toString() 
+                    : "failed: " + this.failure.getMessage();
+        }
+    }
+    
+    /**
+     * The outcome of issuing a batch of tokens.
+     */
+    public static final class Issuance {
+        
+        private final CBORObject[] tokens;
+        
+        private final Exception[] failures;
+        
+        private final long elapsedNanos;
+        
+        Issuance(CBORObject[] tokens, Exception[] failures, 
+                long elapsedNanos) {
+            this.tokens = tokens;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        /**
+         * @return  the encoded tokens in the order of the claim sets, null 
+         *     where encoding failed
+         */
+        public List<CBORObject> getTokens() {
+            return Collections.unmodifiableList(Arrays.asList(this.tokens));
+        }
+        
+        /**
+         * @param index  the index of a claim set
+         * @return  the reason encoding that claim set failed or null
+         */
+        public Exception getFailure(int index) {
+            return this.failures[index];
+        }
+        
+        /**
+         * @return  the number of tokens that could not be encoded
+         */
+        public int getFailureCount() {
+            int count = 0;
+            for (Exception e : this.failures) {
+                if (e != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        /**
+         * @return  the wall clock time the batch took, in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+        
+        /**
+         * @return  the number of tokens issued per second
+         */
+        public double getTokensPerSecond() {
+            if (this.elapsedNanos <= 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return (this.tokens.length - getFailureCount()) * 1e9 
+                    / this.elapsedNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return this.tokens.length + " tokens, " + getFailureCount() 
+                    + " failed, " + String.format("%.1f", 
+                            getTokensPerSecond()) + " tokens/s";
+        }
+    }
+}
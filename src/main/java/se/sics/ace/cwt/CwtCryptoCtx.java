@@ -33,14 +33,18 @@ package se.sics.ace.cwt;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.upokecenter.cbor.CBORObject;
 
+import COSE.CoseException;
 import COSE.MessageTag;
 import COSE.OneKey;
 import COSE.Recipient;
 import COSE.Signer;
+import se.sics.ace.AceException;
 
 /**
  * This class holds the singing/mac-ing/encrypting context for a CWT or COSE message.
@@ -64,18 +68,76 @@ public class CwtCryptoCtx {
 	
 	private List<Recipient> recipients = Collections.emptyList();
 	
+	/**
+	 * Recipients by algorithm and kid, each list also contains the 
+	 * recipients without kid for that algorithm
+	 */
+	private Map<CBORObject, Map<CBORObject, RecipientCandidates>> 
+	    recipientsByKid = Collections.emptyMap();
+	
+	/**
+	 * Recipients without kid by algorithm
+	 */
+	private Map<CBORObject, RecipientCandidates> recipientsWithoutKid 
+	    = Collections.emptyMap();
+	
 	private byte[] rawSymmetricKey = null;
+	
+	/**
+	 * Symmetric keys by kid, null unless this is a keyring context
+	 */
+	private Map<CBORObject, byte[]> keyring = null;
+	
+	/**
+	 * The kid of rawSymmetricKey in a keyring context
+	 */
+	private CBORObject kid = null;
 
 	private OneKey publicKey = null;
 	
+	/**
+	 * Trusted public keys by kid, null unless this is a trust store context
+	 */
+	private TrustStore trustStore = null;
+	
+	/**
+	 * The prepared verifier for publicKey, created on first use
+	 */
+	private volatile EcVerifier verifier = null;
+	
 	private CBORObject alg = null;
 	
+	/**
+	 * Keyed crypto engines, null unless prepare() has been called
+	 */
+	private volatile PreparedCrypto prepared = null;
+	
+	/**
+	 * The bounds on the tokens this context accepts
+	 */
+	private volatile CwtLimits limits = CwtLimits.DEFAULT;
+	
 	protected CwtCryptoCtx(MessageTag what, byte[] key, CBORObject alg) {
 	    this.what = what;
 		this.rawSymmetricKey = key;
 		this.alg = alg;
 	}
 	
+	protected CwtCryptoCtx(MessageTag what, Map<CBORObject, byte[]> keyring, 
+	        CBORObject currentKid, CBORObject alg) {
+	    this.what = what;
+	    this.keyring = new HashMap<>(keyring);
+	    this.kid = currentKid;
+	    if (currentKid != null) {
+	        this.rawSymmetricKey = this.keyring.get(currentKid);
+	        if (this.rawSymmetricKey == null) {
+	            throw new IllegalArgumentException(
+	                    "No key for the current kid");
+	        }
+	    }
+	    this.alg = alg;
+	}
+	
 	protected CwtCryptoCtx(MessageTag what, OneKey publicKey, 
 	        OneKey privateKey, CBORObject alg) {
 	    this.what = what;
@@ -84,11 +146,19 @@ public class CwtCryptoCtx {
 		this.alg = alg;
 	}
 
+	protected CwtCryptoCtx(MessageTag what, TrustStore trustStore, 
+	        CBORObject alg) {
+	    this.what = what;
+	    this.trustStore = trustStore;
+	    this.alg = alg;
+	}
+
 	protected CwtCryptoCtx(MessageTag what, List<Recipient> recipients, 
 	        CBORObject alg) {
 	    this.what = what;
 		this.recipients = new ArrayList<>();
 		this.recipients.addAll(recipients);
+		indexRecipients();
 		this.alg = alg;
 	}
 
@@ -104,6 +174,64 @@ public class CwtCryptoCtx {
 		}
 	}
 
+	/**
+	 * Builds the kid and algorithm index over the recipients.
+	 */
+	private void indexRecipients() {
+	    Map<CBORObject, Map<CBORObject, List<RecipientKey>>> byAlgAndKid 
+	        = new HashMap<>();
+	    Map<CBORObject, List<RecipientKey>> withoutKid = new HashMap<>();
+	    for (Recipient r : this.recipients) {
+	        RecipientKey key = new RecipientKey(r);
+	        if (key.getAlg() == null) {
+	            continue;
+	        }
+	        if (key.getKid() == null) {
+	            add(withoutKid, key.getAlg(), key);
+	        } else {
+	            Map<CBORObject, List<RecipientKey>> byKid 
+	                = byAlgAndKid.get(key.getAlg());
+	            if (byKid == null) {
+	                byKid = new HashMap<>();
+	                byAlgAndKid.put(key.getAlg(), byKid);
+	            }
+	            add(byKid, key.getKid(), key);
+	        }
+	    }
+	    this.recipientsByKid = new HashMap<>();
+	    for (Map.Entry<CBORObject, Map<CBORObject, List<RecipientKey>>> e 
+	            : byAlgAndKid.entrySet()) {
+	        //Recipients without kid match any kid, try them last
+	        List<RecipientKey> any = withoutKid.get(e.getKey());
+	        Map<CBORObject, RecipientCandidates> byKid = new HashMap<>();
+	        for (Map.Entry<CBORObject, List<RecipientKey>> candidates 
+	                : e.getValue().entrySet()) {
+	            if (any != null) {
+	                candidates.getValue().addAll(any);
+	            }
+	            byKid.put(candidates.getKey(), 
+	                    new RecipientCandidates(candidates.getValue()));
+	        }
+	        this.recipientsByKid.put(e.getKey(), byKid);
+	    }
+	    this.recipientsWithoutKid = new HashMap<>();
+	    for (Map.Entry<CBORObject, List<RecipientKey>> e 
+	            : withoutKid.entrySet()) {
+	        this.recipientsWithoutKid.put(e.getKey(), 
+	                new RecipientCandidates(e.getValue()));
+	    }
+	}
+	
+	private static void add(Map<CBORObject, List<RecipientKey>> map, 
+	        CBORObject key, RecipientKey value) {
+	    List<RecipientKey> list = map.get(key);
+	    if (list == null) {
+	        list = new ArrayList<>();
+	        map.put(key, list);
+	    }
+	    list.add(value);
+	}
+
 	/**
 	 * Creates a context for making or verifying Encrypt COSE messages.
 	 * 
@@ -127,6 +255,23 @@ public class CwtCryptoCtx {
 		return new CwtCryptoCtx(MessageTag.Encrypt0, rawSymmetrickey, alg);
 	}
 	
+	/**
+	 * Creates a context for encrypting and decrypting Encrypt0 COSE messages
+	 * with a keyring.  The key for decrypting is selected by the kid of the
+	 * message, messages without kid are decrypted with the current key.
+	 * 
+	 * @param keys  the raw symmetric keys by kid (as CBOR byte strings)
+	 * @param currentKid  the kid of the key for encrypting, may be null if
+	 *     the context is only used for decrypting
+	 * @param alg  the encryption algorithm (from AlgorithmID.*.ASCBOR())
+	 * 
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx encrypt0(Map<CBORObject, byte[]> keys, 
+	        CBORObject currentKid, CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.Encrypt0, keys, currentKid, alg);
+	}
+	
 	/**
 	 * Creates a context for making or verifying MAC COSE messages.
 	 * 
@@ -150,6 +295,23 @@ public class CwtCryptoCtx {
 		return new CwtCryptoCtx(MessageTag.MAC0, rawSymmetricKey, alg);
 	}
 	
+	/**
+	 * Creates a context for making and verifying MAC0 COSE messages with a
+	 * keyring.  The key for verifying is selected by the kid of the message,
+	 * messages without kid are verified with the current key.
+	 * 
+	 * @param keys  the raw symmetric keys by kid (as CBOR byte strings)
+	 * @param currentKid  the kid of the key for making messages, may be null
+	 *     if the context is only used for verifying
+	 * @param alg  the algorithm
+	 * 
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx mac0(Map<CBORObject, byte[]> keys, 
+	        CBORObject currentKid, CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.MAC0, keys, currentKid, alg);
+	}
+	
 	/**
 	 * Create a context for making Sign COSE messages.
 	 * 
@@ -185,6 +347,33 @@ public class CwtCryptoCtx {
 			return new CwtCryptoCtx(MessageTag.Sign1, publicKey, null, alg);
 	}
 	
+	/**
+	 * Create a context for verifying Sign COSE messages with any of a set
+	 * of trusted keys.  The key is selected by the kid of the signers, 
+	 * only the first signer with a known kid is verified.
+	 * 
+	 * @param trustStore  the trusted public keys
+	 * @param alg  the signing algorithm (from  AlgorithmID.*.ASCBOR())
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx signVerify(TrustStore trustStore, 
+	        CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.Sign, trustStore, alg);
+	}
+	
+	/**
+	 * Creates a context for verifying Sign1 COSE messages with any of a 
+	 * set of trusted keys.  The key is selected by the kid of the message.
+	 * 
+	 * @param trustStore  the trusted public keys
+	 * @param alg  the signing algorithm (from  AlgorithmID.*.ASCBOR())
+	 * @return  the matching context
+	 */
+	public static CwtCryptoCtx sign1Verify(TrustStore trustStore, 
+	        CBORObject alg) {
+	    return new CwtCryptoCtx(MessageTag.Sign1, trustStore, alg);
+	}
+	
 	/**
 	 * Creates a context for signing Sign1 COSE messages.
 	 * 
@@ -204,6 +393,32 @@ public class CwtCryptoCtx {
 		return this.signers;
 	}
 	
+	/**
+	 * @return  the prepared ECDSA verifier for the public key or null if 
+	 *     there is none
+	 */
+	EcVerifier getVerifier() {
+	    EcVerifier v = this.verifier;
+	    if (v == null && this.publicKey != null) {
+	        try {
+	            v = EcVerifier.create(this.publicKey);
+	        } catch (CoseException e) {
+	            //Leave error reporting to the COSE library
+	            return null;
+	        }
+	        this.verifier = v;
+	    }
+	    return v;
+	}
+	
+	/**
+	 * @return  the trusted public keys or null if this context has a 
+	 *     single public key
+	 */
+	public TrustStore getTrustStore() {
+	    return this.trustStore;
+	}
+	
 	/**
 	 * @return  the private key
 	 */
@@ -219,12 +434,39 @@ public class CwtCryptoCtx {
 	}
 
 	/**
-	 * @return  the symmetric key
+	 * @return  the symmetric key, for a keyring the current key
 	 */
 	public byte[] getKey() {
 		return this.rawSymmetricKey;
 	}
 	
+	/**
+	 * @return  the kid of the current key of a keyring or null
+	 */
+	public CBORObject getKid() {
+	    return this.kid;
+	}
+	
+	/**
+	 * Selects the symmetric key for processing a message.
+	 * 
+	 * @param kid  the kid of the message or null
+	 * @return  the key for the kid, or the only key if this is not a 
+	 *     keyring
+	 * @throws AceException  if the keyring has no key for the kid
+	 */
+	byte[] getKey(CBORObject kid) throws AceException {
+	    if (this.keyring == null) {
+	        return this.rawSymmetricKey;
+	    }
+	    byte[] key = (kid == null) 
+	            ? this.rawSymmetricKey : this.keyring.get(kid);
+	    if (key == null) {
+	        throw new AceException("No key for kid");
+	    }
+	    return key;
+	}
+	
 	/**
 	 * @return  the recipients
 	 */
@@ -232,6 +474,101 @@ public class CwtCryptoCtx {
 		return this.recipients;
 	}
 
+	/**
+	 * Finds the recipients of this context that may be able to process a
+	 * recipient of an incoming message.
+	 * 
+	 * @param kid  the kid of the message recipient, may be null
+	 * @param alg  the algorithm of the message recipient
+	 * @return  the candidate recipients with their prepared keys, recipients
+	 *     with a matching kid come first.  The candidates for messages 
+	 *     without kid or with an unknown kid are shared per algorithm.
+	 */
+	RecipientCandidates getRecipientKeys(CBORObject kid, CBORObject alg) {
+	    if (alg == null) {
+	        return RecipientCandidates.EMPTY;
+	    }
+	    if (kid != null) {
+	        Map<CBORObject, RecipientCandidates> byKid 
+	            = this.recipientsByKid.get(alg);
+	        if (byKid != null) {
+	            RecipientCandidates candidates = byKid.get(kid);
+	            if (candidates != null) {
+	                return candidates;
+	            }
+	        }
+	    }
+	    RecipientCandidates candidates = this.recipientsWithoutKid.get(alg);
+	    if (candidates == null) {
+	        return RecipientCandidates.EMPTY;
+	    }
+	    return candidates;
+	}
+
+	/**
+	 * Switches this context to prepared mode, where the key schedule is set
+	 * up once for each thread and reused for all messages, instead of once
+	 * per message.  This is currently available for MAC0 with HMAC or 
+	 * AES-CBC-MAC and for Encrypt0 with AES-GCM or AES-CCM.  Other contexts
+	 * are left unchanged.
+	 * 
+	 * Messages that do not have the shape this library produces are still
+	 * processed by the COSE library.
+	 * 
+	 * @return  this context
+	 */
+	public CwtCryptoCtx prepare() {
+	    this.prepared = createPrepared();
+	    return this;
+	}
+	
+	/**
+	 * @return  new prepared crypto processing for this context or null if 
+	 *     there is none
+	 */
+	PreparedCrypto createPrepared() {
+	    if (this.keyring != null) {
+	        return PreparedKeyring.create(
+	                this.what, this.keyring, this.alg, this.kid);
+	    }
+	    return PreparedCrypto.create(
+	            this.what, this.rawSymmetricKey, this.alg, null);
+	}
+	
+	/**
+	 * @return  true if this context is in prepared mode
+	 */
+	public boolean isPrepared() {
+	    return this.prepared != null;
+	}
+	
+	/**
+	 * @return  the prepared crypto processing or null
+	 */
+	PreparedCrypto getPrepared() {
+	    return this.prepared;
+	}
+
+	/**
+	 * Set the bounds on the tokens this context accepts, tokens that break
+	 * them are rejected before any crypto is done.
+	 * 
+	 * @param limits  the limits
+	 */
+	public void setLimits(CwtLimits limits) {
+	    if (limits == null) {
+	        throw new IllegalArgumentException("Limits must not be null");
+	    }
+	    this.limits = limits;
+	}
+	
+	/**
+	 * @return  the bounds on the tokens this context accepts
+	 */
+	public CwtLimits getLimits() {
+	    return this.limits;
+	}
+
 	/**
 	 * @return  the public key
 	 */
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for executors to run the asynchronous CWT operations on.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public final class CwtExecutors {
+    
+    /**
+     * The default number of queued tasks per thread of a bounded pool
+     */
+    public static final int DEFAULT_QUEUE_PER_THREAD = 1024;
+    
+    private CwtExecutors() {
+        //Only static methods
+    }
+    
+    /**
+     * Creates an executor for the crypto processing of CWTs, a bounded 
+     * pool with one thread per processor.  Prepared contexts and direct 
+     * buffers keep keyed engines and scratch space per thread, so crypto 
+     * work should run on a small set of long-lived platform threads, not 
+     * on one virtual thread per task.
+     * 
+     * @return  the executor, to be shut down by the caller
+     */
+    public static ExecutorService newCryptoExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return newBoundedExecutor(threads, 
+                threads * DEFAULT_QUEUE_PER_THREAD);
+    }
+    
+    /**
+     * Creates a bounded pool of daemon threads for the crypto processing of
+     * CWTs.  Tasks submitted while the queue is full are rejected, which 
+     * completes the corresponding future exceptionally.
+     * 
+     * @param threads  the number of threads
+     * @param queueSize  the maximum number of waiting tasks
+     * @return  the executor, to be shut down by the caller
+     */
+    public static ExecutorService newBoundedExecutor(int threads, 
+            int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cwt-crypto-" 
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, 
+                TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<Runnable>(queueSize), factory, 
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
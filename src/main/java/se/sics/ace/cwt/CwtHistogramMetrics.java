@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import COSE.MessageTag;
+
+/**
+ * A <code>CwtMetrics</code> implementation that keeps lock-free 
+ * histograms of the stage timings, recipient attempts and payload sizes,
+ * and success and failure counters for each message type.
+ * 
+ * The histograms have one bucket per power of two, so percentiles are
+ * accurate to a factor of two, which is enough to spot outliers.  Reading 
+ * the metrics while they are updated gives values that are consistent per
+ * counter but not across counters.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class CwtHistogramMetrics implements CwtMetrics {
+    
+    private final Map<Stage, Map<MessageTag, Histogram>> stages 
+        = new EnumMap<>(Stage.class);
+    
+    private final Map<MessageTag, Histogram> attempts 
+        = new EnumMap<>(MessageTag.class);
+    
+    private final Map<MessageTag, Histogram> sizes 
+        = new EnumMap<>(MessageTag.class);
+    
+    /**
+     * Successes and failures of processing, then of encoding, two per type
+     */
+    private final AtomicLongArray outcomes 
+        = new AtomicLongArray(MessageTag.values().length * 4);
+    
+    /**
+     * Constructor.
+     */
+    public CwtHistogramMetrics() {
+        for (Stage stage : Stage.values()) {
+            this.stages.put(stage, histograms());
+        }
+        this.attempts.putAll(histograms());
+        this.sizes.putAll(histograms());
+    }
+    
+    private static Map<MessageTag, Histogram> histograms() {
+        Map<MessageTag, Histogram> ret = new EnumMap<>(MessageTag.class);
+        for (MessageTag type : MessageTag.values()) {
+            ret.put(type, new Histogram());
+        }
+        return ret;
+    }
+
+    @Override
+    public void stage(Stage stage, MessageTag type, long nanos) {
+        this.stages.get(stage).get(type).record(nanos);
+    }
+
+    @Override
+    public void processed(MessageTag type, boolean success) {
+        this.outcomes.incrementAndGet(type.ordinal() * 2 
+                + (success ? 0 : 1));
+    }
+
+    @Override
+    public void encoded(MessageTag type, boolean success) {
+        this.outcomes.incrementAndGet((MessageTag.values().length 
+                + type.ordinal()) * 2 + (success ? 0 : 1));
+    }
+
+    @Override
+    public void recipientAttempts(MessageTag type, int attempts) {
+        this.attempts.get(type).record(attempts);
+    }
+
+    @Override
+    public void payloadSize(MessageTag type, int bytes) {
+        this.sizes.get(type).record(bytes);
+    }
+    
+    /**
+     * @param stage  the stage
+     * @param type  the message type
+     * @return  the histogram of timings of that stage, in nanoseconds
+     */
+    public Histogram getStage(Stage stage, MessageTag type) {
+        return this.stages.get(stage).get(type);
+    }
+    
+    /**
+     * @param type  the message type
+     * @return  the histogram of keys tried per received token
+     */
+    public Histogram getRecipientAttempts(MessageTag type) {
+        return this.attempts.get(type);
+    }
+    
+    /**
+     * @param type  the message type
+     * @return  the histogram of payload sizes, in bytes
+     */
+    public Histogram getPayloadSizes(MessageTag type) {
+        return this.sizes.get(type);
+    }
+    
+    /**
+     * @param type  the message type
+     * @param success  true for the number of valid tokens, false for the 
+     *     number of invalid ones
+     * @return  the number of received tokens of that type and outcome
+     */
+    public long getProcessed(MessageTag type, boolean success) {
+        return this.outcomes.get(type.ordinal() * 2 + (success ? 0 : 1));
+    }
+    
+    /**
+     * @param type  the message type
+     * @param success  true for the number of tokens encoded, false for the 
+     *     number of failures
+     * @return  the number of encoded tokens of that type and outcome
+     */
+    public long getEncoded(MessageTag type, boolean success) {
+        return this.outcomes.get((MessageTag.values().length 
+                + type.ordinal()) * 2 + (success ? 0 : 1));
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (MessageTag type : MessageTag.values()) {
+            long ok = getProcessed(type, true);
+            long failed = getProcessed(type, false);
+            long enc = getEncoded(type, true);
+            long encFailed = getEncoded(type, false);
+            if (ok + failed + enc + encFailed == 0) {
+                continue;
+            }
+            sb.append(type).append(": processed ").append(ok)
+                .append(" ok ").append(failed).append(" failed, encoded ")
+                .append(enc).append(" ok ").append(encFailed)
+                .append(" failed\n");
+            for (Stage stage : Stage.values()) {
+                Histogram h = getStage(stage, type);
+                if (h.getCount() > 0) {
+                    sb.append("  ").append(stage).append(" ns ")
+                        .append(h).append('\n');
+                }
+            }
+            if (getRecipientAttempts(type).getCount() > 0) {
+                sb.append("  attempts ").append(getRecipientAttempts(type))
+                    .append('\n');
+            }
+            sb.append("  payload bytes ").append(getPayloadSizes(type))
+                .append('\n');
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * A lock-free histogram of non-negative values with one bucket per 
+     * power of two.
+     */
+    public static final class Histogram {
+        
+        /**
+         * Bucket i counts the values v with 2^(i-1) <= v < 2^i, bucket 0 
+         * counts zero and negative values
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        
+        private final AtomicLong sum = new AtomicLong();
+        
+        private final AtomicLong max = new AtomicLong();
+        
+        Histogram() {
+            //Only created by the metrics
+        }
+        
+        /**
+         * Add a value.
+         * 
+         * @param value  the value
+         */
+        void record(long value) {
+            int bucket = value <= 0 ? 0 
+                    : Math.min(64 - Long.numberOfLeadingZeros(value), 63);
+            this.buckets.incrementAndGet(bucket);
+            this.sum.addAndGet(value);
+            long m = this.max.get();
+            while (value > m && !this.max.compareAndSet(m, value)) {
+                m = this.max.get();
+            }
+        }
+        
+        /**
+         * @return  the number of values recorded
+         */
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < this.buckets.length(); i++) {
+                count += this.buckets.get(i);
+            }
+            return count;
+        }
+        
+        /**
+         * @return  the largest value recorded
+         */
+        public long getMax() {
+            return this.max.get();
+        }
+        
+        /**
+         * @return  the mean of the values recorded or 0 if there are none
+         */
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double)this.sum.get() / count;
+        }
+        
+        /**
+         * @param percentile  the percentile, between 0 and 100
+         * @return  an upper bound of the value at that percentile, at most
+         *     twice the actual value
+         */
+        public long getValueAtPercentile(double percentile) {
+            long[] counts = getBuckets();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            long rank = (long)Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    long bound = i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE 
+                            : (1L << i) - 1);
+                    return Math.min(bound, getMax());
+                }
+            }
+            return 0;
+        }
+        
+        /**
+         * @return  a copy of the bucket counts, bucket i counts the values 
+         *     v with 2^(i-1) <= v < 2^i
+         */
+        public long[] getBuckets() {
+            long[] ret = new long[this.buckets.length()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = this.buckets.get(i);
+            }
+            return ret;
+        }
+        
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" 
+                    + String.format("%.1f", getMean()) 
+                    + " p50=" + getValueAtPercentile(50) 
+                    + " p99=" + getValueAtPercentile(99) 
+                    + " max=" + getMax();
+        }
+    }
+}
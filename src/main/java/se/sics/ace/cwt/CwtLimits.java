@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+
+import COSE.AlgorithmID;
+import COSE.HeaderKeys;
+import COSE.MessageTag;
+import se.sics.ace.AceException;
+
+/**
+ * Bounds on the tokens a crypto context accepts.  The limits on the COSE
+ * message are checked on the raw bytes before any crypto is done, the 
+ * limits on the claims are checked on the payload before it is decoded.
+ * 
+ * Instances are immutable, the <code>with</code> methods return a copy 
+ * with one limit changed.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public final class CwtLimits {
+    
+    /**
+     * The limits used by crypto contexts that have not been given any.
+     */
+    public static final CwtLimits DEFAULT 
+        = new CwtLimits(65536, 16, 1024, 16, null);
+    
+    private static final int ALG_LABEL 
+        = HeaderKeys.Algorithm.AsCBOR().AsInt32();
+    
+    private final int maxTokenSize;
+    
+    private final int maxRecipients;
+    
+    private final int maxClaims;
+    
+    private final int maxDepth;
+    
+    /**
+     * The allowed content and signature algorithms or null if all are
+     */
+    private final Set<CBORObject> allowedAlgs;
+    
+    private CwtLimits(int maxTokenSize, int maxRecipients, int maxClaims,
+            int maxDepth, Set<CBORObject> allowedAlgs) {
+        this.maxTokenSize = maxTokenSize;
+        this.maxRecipients = maxRecipients;
+        this.maxClaims = maxClaims;
+        this.maxDepth = maxDepth;
+        this.allowedAlgs = allowedAlgs;
+    }
+    
+    /**
+     * @param size  the maximum size of a COSE message in bytes
+     * @return  a copy of these limits with the maximum token size set
+     */
+    public CwtLimits withMaxTokenSize(int size) {
+        return new CwtLimits(positive(size), this.maxRecipients, 
+                this.maxClaims, this.maxDepth, this.allowedAlgs);
+    }
+    
+    /**
+     * @param recipients  the maximum number of recipients or signers of a
+     *     COSE message
+     * @return  a copy of these limits with the maximum recipients set
+     */
+    public CwtLimits withMaxRecipients(int recipients) {
+        return new CwtLimits(this.maxTokenSize, positive(recipients), 
+                this.maxClaims, this.maxDepth, this.allowedAlgs);
+    }
+    
+    /**
+     * @param claims  the maximum number of claims of a CWT
+     * @return  a copy of these limits with the maximum claims set
+     */
+    public CwtLimits withMaxClaims(int claims) {
+        return new CwtLimits(this.maxTokenSize, this.maxRecipients, 
+                positive(claims), this.maxDepth, this.allowedAlgs);
+    }
+    
+    /**
+     * @param depth  the maximum nesting depth of the COSE message and of 
+     *     the claims, a single scalar has depth 1
+     * @return  a copy of these limits with the maximum depth set
+     */
+    public CwtLimits withMaxDepth(int depth) {
+        return new CwtLimits(this.maxTokenSize, this.maxRecipients, 
+                this.maxClaims, positive(depth), this.allowedAlgs);
+    }
+    
+    /**
+     * Restrict the content and signature algorithms a COSE message may
+     * use.  The algorithms of the recipients of MAC and Encrypt messages
+     * are not restricted.
+     * 
+     * @param algs  the allowed algorithms, none to allow all
+     * @return  a copy of these limits with the allowed algorithms set
+     */
+    public CwtLimits withAllowedAlgorithms(AlgorithmID... algs) {
+        Set<CBORObject> allowed = null;
+        if (algs.length > 0) {
+            allowed = new HashSet<>();
+            for (AlgorithmID alg : algs) {
+                allowed.add(alg.AsCBOR());
+            }
+            allowed = Collections.unmodifiableSet(allowed);
+        }
+        return new CwtLimits(this.maxTokenSize, this.maxRecipients, 
+                this.maxClaims, this.maxDepth, allowed);
+    }
+    
+    /**
+     * @return  the maximum size of a COSE message in bytes
+     */
+    public int getMaxTokenSize() {
+        return this.maxTokenSize;
+    }
+    
+    /**
+     * @return  the maximum number of recipients or signers
+     */
+    public int getMaxRecipients() {
+        return this.maxRecipients;
+    }
+    
+    /**
+     * @return  the maximum number of claims
+     */
+    public int getMaxClaims() {
+        return this.maxClaims;
+    }
+    
+    /**
+     * @return  the maximum nesting depth
+     */
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+    
+    /**
+     * @param alg  an algorithm
+     * @return  true if the algorithm is allowed
+     */
+    public boolean isAllowed(AlgorithmID alg) {
+        return this.allowedAlgs == null 
+                || this.allowedAlgs.contains(alg.AsCBOR());
+    }
+    
+    private static int positive(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        return limit;
+    }
+    
+    /**
+     * Checks a raw COSE message against these limits.  Messages that are 
+     * not shaped like COSE messages are left to the COSE library to 
+     * reject.
+     * 
+     * @param buf  the buffer containing the message
+     * @param off  the offset of the message
+     * @param len  the length of the message
+     * @throws AceException  if the message breaks a limit
+     */
+    void checkMessage(byte[] buf, int off, int len) throws AceException {
+        if (len > this.maxTokenSize) {
+            throw new AceException("Token exceeds maximum size");
+        }
+        CborReader reader = new CborReader(buf, off, len);
+        reader.skip(this.maxDepth);
+        if (reader.hasMore()) {
+            throw new AceException("Malformed CBOR: trailing data");
+        }
+        
+        reader = new CborReader(buf, off, len);
+        if (reader.peekMajorType() != CborReader.TAG) {
+            return;
+        }
+        long tag = reader.readTag();
+        if (reader.peekMajorType() != CborReader.ARRAY) {
+            return;
+        }
+        long size = reader.readArrayHeader();
+        int recipientsIndex;
+        if (tag == MessageTag.Sign.value || tag == MessageTag.Encrypt.value) {
+            recipientsIndex = 3;
+        } else if (tag == MessageTag.MAC.value) {
+            recipientsIndex = 4;
+        } else {
+            recipientsIndex = -1;
+        }
+        if (size < 2) {
+            return;
+        }
+        CBORObject alg = readAlg(reader);
+        if (tag != MessageTag.Sign.value || alg != null) {
+            checkAlg(alg);
+        }
+        if (recipientsIndex < 0 || size <= recipientsIndex) {
+            return;
+        }
+        for (int i = 2; i < recipientsIndex; i++) {
+            reader.skip();
+        }
+        if (reader.peekMajorType() != CborReader.ARRAY) {
+            return;
+        }
+        long recipients = reader.readArrayHeader();
+        if (recipients == CborReader.INDEFINITE 
+                || recipients > this.maxRecipients) {
+            throw new AceException("Too many recipients or signers");
+        }
+        if (tag != MessageTag.Sign.value) {
+            return;
+        }
+        for (long i = 0; i < recipients; i++) {
+            if (reader.peekMajorType() != CborReader.ARRAY) {
+                return;
+            }
+            if (reader.readArrayHeader() != 3) {
+                return;
+            }
+            checkAlg(readAlg(reader));
+            reader.skip();
+        }
+    }
+    
+    /**
+     * Reads the algorithm from the protected and unprotected headers of a
+     * COSE layer.
+     * 
+     * @param reader  positioned at the protected header
+     * @return  the algorithm or null if there is none
+     * @throws AceException  if the headers are malformed
+     */
+    private static CBORObject readAlg(CborReader reader) 
+            throws AceException {
+        CBORObject alg = null;
+        if (reader.peekMajorType() == CborReader.BYTES) {
+            int len = reader.readByteStringHeader();
+            int start = reader.position();
+            if (len > 0) {
+                alg = findAlg(reader.region(start, len));
+            }
+            reader.advance(len);
+        } else {
+            reader.skip();
+        }
+        CBORObject unprotectedAlg = findAlg(reader);
+        if (alg != null && unprotectedAlg != null) {
+            throw new AceException("Algorithm in both protected and "
+                    + "unprotected header");
+        }
+        return (alg != null) ? alg : unprotectedAlg;
+    }
+    
+    /**
+     * Reads a header map and finds the algorithm in it.
+     * 
+     * @param reader  positioned at the header map
+     * @return  the algorithm or null if there is none
+     * @throws AceException  if the header map is malformed
+     */
+    private static CBORObject findAlg(CborReader reader) throws AceException {
+        if (reader.peekMajorType() != CborReader.MAP) {
+            reader.skip();
+            return null;
+        }
+        CBORObject alg = null;
+        long entries = reader.readMapHeader();
+        for (long i = 0; entries == CborReader.INDEFINITE 
+                ? !reader.isBreak() : i < entries; i++) {
+            boolean isAlg = false;
+            if (reader.peekMajorType() == CborReader.UNSIGNED) {
+                isAlg = reader.readInt() == ALG_LABEL;
+            } else {
+                reader.skip();
+            }
+            if (!isAlg) {
+                reader.skip();
+                continue;
+            }
+            switch (reader.peekMajorType()) {
+            case CborReader.UNSIGNED:
+            case CborReader.NEGATIVE:
+                alg = CBORObject.FromObject(reader.readInt());
+                break;
+            case CborReader.TEXT:
+                alg = CBORObject.FromObject(reader.readText());
+                break;
+            default:
+                reader.skip();
+            }
+        }
+        if (entries == CborReader.INDEFINITE) {
+            reader.readBreak();
+        }
+        return alg;
+    }
+    
+    private void checkAlg(CBORObject alg) throws AceException {
+        if (this.allowedAlgs != null 
+                && (alg == null || !this.allowedAlgs.contains(alg))) {
+            throw new AceException("Algorithm not allowed");
+        }
+    }
+    
+    /**
+     * Checks encoded claims against these limits.  Payloads that are not
+     * maps are left to the claims processing to reject.
+     * 
+     * @param payload  the encoded claims
+     * @throws AceException  if the claims break a limit
+     */
+    void checkClaims(byte[] payload) throws AceException {
+        CborReader reader = new CborReader(payload, 0, payload.length);
+        if (reader.peekMajorType() != CborReader.MAP) {
+            return;
+        }
+        long size = reader.readMapHeader();
+        if (size > this.maxClaims) {
+            throw new AceException("Too many claims");
+        }
+        long count = 0;
+        while (size == CborReader.INDEFINITE ? !reader.isBreak() 
+                : count < size) {
+            if (++count > this.maxClaims) {
+                throw new AceException("Too many claims");
+            }
+            reader.skip(this.maxDepth - 1);
+            reader.skip(this.maxDepth - 1);
+        }
+    }
+    
+    /**
+     * Checks decoded claims against these limits.
+     * 
+     * @param content  the CBOR Map of claims
+     * @throws AceException  if the claims break a limit
+     */
+    void checkClaims(CBORObject content) throws AceException {
+        if (content.getType() != CBORType.Map) {
+            return;
+        }
+        if (content.size() > this.maxClaims) {
+            throw new AceException("Too many claims");
+        }
+        checkDepth(content, this.maxDepth);
+    }
+    
+    private static void checkDepth(CBORObject item, int depth) 
+            throws AceException {
+        if (depth <= 0) {
+            throw new AceException("CBOR nesting too deep");
+        }
+        if (item.getType() == CBORType.Array) {
+            for (CBORObject value : item.getValues()) {
+                checkDepth(value, depth - 1);
+            }
+        } else if (item.getType() == CBORType.Map) {
+            for (CBORObject key : item.getKeys()) {
+                checkDepth(key, depth - 1);
+                checkDepth(item.get(key), depth - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import COSE.MessageTag;
+
+/**
+ * Listener for the processing stages of <code>CWT</code>, so that 
+ * deployments can see where the time goes and how often tokens fail.
+ * 
+ * Implementations are called on the threads that encode and process
+ * tokens and must be thread-safe and fast.  Register one with 
+ * <code>CWT.setMetrics()</code>.  
+ * 
+ * All calls are labelled with the message type of the crypto context the
+ * token was processed with.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public interface CwtMetrics {
+    
+    /**
+     * The stages of encoding and processing a CWT.
+     */
+    enum Stage {
+        /**
+         * Decoding the COSE wrapper of a received token
+         */
+        DECODE,
+        /**
+         * Checking the MAC or signature of, or decrypting a received token.
+         * For prepared contexts this includes decoding the wrapper.
+         */
+        VERIFY,
+        /**
+         * Decoding and checking the claims of a received token
+         */
+        CLAIMS,
+        /**
+         * Abbreviating and encoding the claims of a token to be sent
+         */
+        ENCODE,
+        /**
+         * Adding the COSE wrapper to a token to be sent
+         */
+        PROTECT
+    }
+    
+    /**
+     * A listener that does nothing.  <code>CWT</code> does not take any 
+     * timings while this is registered.
+     */
+    CwtMetrics NOOP = new CwtMetrics() {
+        @Override
+        public void stage(Stage stage, MessageTag type, long nanos) {
+            //Nothing to do
+        }
+        @Override
+        public void processed(MessageTag type, boolean success) {
+            //Nothing to do
+        }
+        @Override
+        public void encoded(MessageTag type, boolean success) {
+            //Nothing to do
+        }
+        @Override
+        public void recipientAttempts(MessageTag type, int attempts) {
+            //Nothing to do
+        }
+        @Override
+        public void payloadSize(MessageTag type, int bytes) {
+            //Nothing to do
+        }
+    };
+    
+    /**
+     * Called when a stage has completed.
+     * 
+     * @param stage  the stage
+     * @param type  the message type
+     * @param nanos  the time the stage took, in nanoseconds
+     */
+    void stage(Stage stage, MessageTag type, long nanos);
+    
+    /**
+     * Called when the COSE wrapper of a received token has been validated
+     * or has failed validation.
+     * 
+     * @param type  the message type
+     * @param success  true if the wrapper was valid
+     */
+    void processed(MessageTag type, boolean success);
+    
+    /**
+     * Called when a COSE wrapper has been added to a token or adding it 
+     * failed.
+     * 
+     * @param type  the message type
+     * @param success  true if the wrapper was added
+     */
+    void encoded(MessageTag type, boolean success);
+    
+    /**
+     * Called with the number of keys that were tried on the signers or 
+     * recipients of a received token.
+     * 
+     * @param type  the message type
+     * @param attempts  the number of keys tried
+     */
+    void recipientAttempts(MessageTag type, int attempts);
+    
+    /**
+     * Called with the size of the encoded claims of a token.
+     * 
+     * @param type  the message type
+     * @param bytes  the size of the payload
+     */
+    void payloadSize(MessageTag type, int bytes);
+}
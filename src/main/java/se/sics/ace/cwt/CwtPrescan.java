@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.io.ByteArrayInputStream;
+
+import com.upokecenter.cbor.CBORObject;
+
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+/**
+ * The time window and audience of a CWT, read in a single pass over the 
+ * raw bytes of the claims without decoding the other claims.
+ * 
+ * Both the abbreviated (exp = 4, nbf = 5, aud = 3) and the text string 
+ * keys are recognized.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public final class CwtPrescan {
+    
+    private static final byte[] AUD = "aud".getBytes(Constants.charset);
+    
+    private static final byte[] EXP = "exp".getBytes(Constants.charset);
+    
+    private static final byte[] NBF = "nbf".getBytes(Constants.charset);
+    
+    /**
+     * The raw claims
+     */
+    private final byte[] payload;
+    
+    /**
+     * The exp claim or Long.MAX_VALUE if absent
+     */
+    private final long exp;
+    
+    /**
+     * The nbf claim or Long.MIN_VALUE if absent
+     */
+    private final long nbf;
+    
+    /**
+     * The start of the encoded aud claim in the payload or -1 if absent
+     */
+    private final int audStart;
+    
+    /**
+     * The end of the encoded aud claim in the payload
+     */
+    private final int audEnd;
+    
+    private CwtPrescan(byte[] payload, long exp, long nbf, int audStart, 
+            int audEnd) {
+        this.payload = payload;
+        this.exp = exp;
+        this.nbf = nbf;
+        this.audStart = audStart;
+        this.audEnd = audEnd;
+    }
+    
+    /**
+     * Scan the raw bytes of a CBOR Map of claims.
+     * 
+     * @param payload  the CBOR Map of claims, e.g. the verified content 
+     *     of a COSE object
+     * @return  the time window and audience of the claims
+     * @throws AceException  if the payload is not a CBOR Map or the exp and 
+     *     nbf claims are not NumericDates
+     */
+    public static CwtPrescan scan(byte[] payload) throws AceException {
+        return scan(payload, 0, payload.length);
+    }
+    
+    /**
+     * Scan the raw bytes of a CBOR Map of claims.
+     * 
+     * @param buf  the buffer containing the CBOR Map of claims
+     * @param offset  the offset of the claims in the buffer
+     * @param length  the length of the claims
+     * @return  the time window and audience of the claims
+     * @throws AceException  if the payload is not a CBOR Map or the exp and 
+     *     nbf claims are not NumericDates
+     */
+    public static CwtPrescan scan(byte[] buf, int offset, int length) 
+            throws AceException {
+        CborReader reader = new CborReader(buf, offset, length);
+        if (reader.peekMajorType() != CborReader.MAP) {
+            throw new AceException("This is not a CWT");
+        }
+        long size = reader.readMapHeader();
+        long exp = Long.MAX_VALUE;
+        long nbf = Long.MIN_VALUE;
+        int audStart = -1;
+        int audEnd = -1;
+        for (long i = 0; size == CborReader.INDEFINITE 
+                ? !reader.isBreak() : i < size; i++) {
+            int label = 0;
+            switch (reader.peekMajorType()) {
+            case CborReader.UNSIGNED :
+                long val = reader.readInt();
+                if (val == Constants.EXP || val == Constants.NBF 
+                        || val == Constants.AUD) {
+                    label = (int)val;
+                }
+                break;
+            case CborReader.TEXT :
+                int len = reader.readTextHeader();
+                int start = reader.position();
+                reader.advance(len);
+                if (reader.regionEquals(start, len, EXP)) {
+                    label = Constants.EXP;
+                } else if (reader.regionEquals(start, len, NBF)) {
+                    label = Constants.NBF;
+                } else if (reader.regionEquals(start, len, AUD)) {
+                    label = Constants.AUD;
+                }
+                break;
+            default :
+                reader.skip();
+            }
+            switch (label) {
+            case Constants.EXP :
+                exp = reader.readNumericDate();
+                break;
+            case Constants.NBF :
+                nbf = reader.readNumericDate();
+                break;
+            case Constants.AUD :
+                audStart = reader.position();
+                reader.skip();
+                audEnd = reader.position();
+                break;
+            default :
+                reader.skip();
+            }
+        }
+        if (size == CborReader.INDEFINITE) {
+            reader.readBreak();
+        }
+        return new CwtPrescan(buf, exp, nbf, audStart, audEnd);
+    }
+    
+    /**
+     * @return  the exp claim or Long.MAX_VALUE if the claims have none
+     */
+    public long getExp() {
+        return this.exp;
+    }
+    
+    /**
+     * @return  the nbf claim or Long.MIN_VALUE if the claims have none
+     */
+    public long getNbf() {
+        return this.nbf;
+    }
+    
+    /**
+     * Checks if the claims are valid according to the nbf and exp claims
+     * (if present).
+     * 
+     * @param now  the current time
+     * @return  true if the claims are valid, false if not
+     */
+    public boolean isValid(long now) {
+        return this.nbf <= now && this.exp >= now;
+    }
+    
+    /**
+     * Checks if the claims are expired according to the exp claim
+     * (if present).
+     * 
+     * @param now  the current time
+     * @return  true if the claims are expired, false if not or if they have 
+     *     no expiration date
+     */
+    public boolean expired(long now) {
+        return this.exp < now;
+    }
+    
+    /**
+     * @return  the aud claim or null if the claims have none
+     */
+    public CBORObject getAudience() {
+        if (this.audStart < 0) {
+            return null;
+        }
+        return CBORObject.Read(new ByteArrayInputStream(this.payload, 
+                this.audStart, this.audEnd - this.audStart));
+    }
+    
+    /**
+     * Checks if the aud claim is, or is an array containing, the given
+     * audience. The comparison is done on the raw bytes.
+     * 
+     * @param audience  the UTF-8 encoded audience
+     * @return  true if the audience matches, false if not or if the claims
+     *     have no aud claim
+     * @throws AceException  if the aud claim is malformed
+     */
+    public boolean hasAudience(byte[] audience) throws AceException {
+        if (this.audStart < 0) {
+            return false;
+        }
+        CborReader reader = new CborReader(this.payload, this.audStart, 
+                this.audEnd - this.audStart);
+        switch (reader.peekMajorType()) {
+        case CborReader.TEXT :
+            return reader.readTextEquals(audience);
+        case CborReader.ARRAY :
+            long size = reader.readArrayHeader();
+            for (long i = 0; size == CborReader.INDEFINITE 
+                    ? !reader.isBreak() : i < size; i++) {
+                if (reader.peekMajorType() == CborReader.TEXT) {
+                    if (reader.readTextEquals(audience)) {
+                        return true;
+                    }
+                } else {
+                    reader.skip();
+                }
+            }
+            return false;
+        default :
+            return false;
+        }
+    }
+    
+    /**
+     * Checks if the aud claim is, or is an array containing, the given
+     * audience.
+     * 
+     * @param audience  the audience
+     * @return  true if the audience matches, false if not or if the claims
+     *     have no aud claim
+     * @throws AceException  if the aud claim is malformed
+     */
+    public boolean hasAudience(String audience) throws AceException {
+        return hasAudience(audience.getBytes(Constants.charset));
+    }
+}
@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.CoseException;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+/**
+ * A template for issuing many CWTs that share most of their claims.
+ * 
+ * The static claims are abbreviated and encoded once, when the template is
+ * created.  Issuing a token then only writes the claims that change from
+ * token to token (exp, nbf, iat and cti) and copies the static part into 
+ * the payload, before handing it to the COSE wrapper.
+ * 
+ * Instances are immutable and can be shared between threads.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public final class CwtTemplate {
+    
+    /**
+     * Value of a time claim that should be left out of the token
+     */
+    public static final long ABSENT = Long.MIN_VALUE;
+    
+    /**
+     * The static entries whose keys sort before the dynamic claims
+     */
+    private final byte[] before;
+    
+    /**
+     * The static entries whose keys sort after the dynamic claims
+     */
+    private final byte[] after;
+    
+    /**
+     * The number of static claims
+     */
+    private final int staticCount;
+    
+    /**
+     * Constructor.
+     * 
+     * @param staticClaims  the claims shared by all tokens issued from this
+     *     template, must not contain exp, nbf, iat or cti
+     * @throws AceException  if the static claims contain a dynamic claim
+     */
+    public CwtTemplate(Map<String, CBORObject> staticClaims) 
+            throws AceException {
+        CBORObject map = Constants.abbreviate(staticClaims);
+        List<byte[][]> entries = new ArrayList<>();
+        for (CBORObject key : map.getKeys()) {
+            if (isDynamic(key)) {
+                throw new AceException("Template cannot contain claim: " 
+                        + key);
+            }
+            entries.add(new byte[][] {key.EncodeToBytes(), 
+                map.get(key).EncodeToBytes()});
+        }
+        //Canonical CBOR order: shorter keys first, then bytewise
+        Collections.sort(entries, new Comparator<byte[][]>() {
+            @Override
+            public int compare(byte[][] a, byte[][] b) {
+                return compareKeys(a[0], b[0]);
+            }
+        });
+        ByteArrayOutputStream before = new ByteArrayOutputStream();
+        ByteArrayOutputStream after = new ByteArrayOutputStream();
+        byte[] first = {(byte)Constants.EXP};
+        for (byte[][] e : entries) {
+            ByteArrayOutputStream out 
+                = compareKeys(e[0], first) < 0 ? before : after;
+            out.write(e[0], 0, e[0].length);
+            out.write(e[1], 0, e[1].length);
+        }
+        this.before = before.toByteArray();
+        this.after = after.toByteArray();
+        this.staticCount = entries.size();
+    }
+    
+    /**
+     * Builds the payload of a token, i.e. the encoded claims map.
+     * 
+     * @param exp  the expiration time or <code>ABSENT</code>
+     * @param nbf  the not before time or <code>ABSENT</code>
+     * @param iat  the issued at time or <code>ABSENT</code>
+     * @param cti  the token identifier or null
+     * @return  the encoded claims
+     */
+    public byte[] payload(long exp, long nbf, long iat, byte[] cti) {
+        int count = this.staticCount;
+        int size = this.before.length + this.after.length;
+        for (long time : new long[] {exp, nbf, iat}) {
+            if (time != ABSENT) {
+                count++;
+                size += 1 + headLength(time < 0 ? -1 - time : time);
+            }
+        }
+        if (cti != null) {
+            count++;
+            size += 1 + headLength(cti.length) + cti.length;
+        }
+        size += headLength(count);
+        
+        byte[] buf = new byte[size];
+        int off = writeHead(buf, 0, CborReader.MAP, count);
+        System.arraycopy(this.before, 0, buf, off, this.before.length);
+        off += this.before.length;
+        off = writeTime(buf, off, Constants.EXP, exp);
+        off = writeTime(buf, off, Constants.NBF, nbf);
+        off = writeTime(buf, off, Constants.IAT, iat);
+        if (cti != null) {
+            buf[off++] = (byte)Constants.CTI;
+            off = writeHead(buf, off, CborReader.BYTES, cti.length);
+            System.arraycopy(cti, 0, buf, off, cti.length);
+            off += cti.length;
+        }
+        System.arraycopy(this.after, 0, buf, off, this.after.length);
+        return buf;
+    }
+    
+    /**
+     * Issues a token from this template.
+     * 
+     * @param ctx  the crypto context
+     * @param exp  the expiration time or <code>ABSENT</code>
+     * @param nbf  the not before time or <code>ABSENT</code>
+     * @param iat  the issued at time or <code>ABSENT</code>
+     * @param cti  the token identifier or null
+     * @return  the COSE object containing the token
+     * @throws IllegalStateException 
+     * @throws InvalidCipherTextException 
+     * @throws CoseException 
+     * @throws AceException 
+     */
+    public CBORObject encode(CwtCryptoCtx ctx, long exp, long nbf, long iat, 
+            byte[] cti) throws IllegalStateException, 
+            InvalidCipherTextException, CoseException, AceException {
+        return CWT.encodeCOSE(payload(exp, nbf, iat, cti), ctx);
+    }
+    
+    /**
+     * Issues a token from this template directly into a buffer.
+     * 
+     * @param ctx  the crypto context
+     * @param out  the buffer to write to, its position is advanced past the
+     *     encoded token
+     * @param exp  the expiration time or <code>ABSENT</code>
+     * @param nbf  the not before time or <code>ABSENT</code>
+     * @param iat  the issued at time or <code>ABSENT</code>
+     * @param cti  the token identifier or null
+     * @return  the number of bytes written
+     * @throws BufferOverflowException  if the token does not fit, nothing 
+     *     is written in that case
+     * @throws IllegalStateException 
+     * @throws InvalidCipherTextException 
+     * @throws CoseException 
+     * @throws AceException 
+     */
+    public int encode(CwtCryptoCtx ctx, ByteBuffer out, long exp, long nbf, 
+            long iat, byte[] cti) throws IllegalStateException, 
+            InvalidCipherTextException, CoseException, AceException {
+        return CWT.encodeCOSE(payload(exp, nbf, iat, cti), ctx, out);
+    }
+    
+    /**
+     * @param key  an abbreviated claim key
+     * @return  true if this claim is filled in per token
+     */
+    private static boolean isDynamic(CBORObject key) {
+        if (!key.isIntegral() || !key.CanFitInInt32()) {
+            return false;
+        }
+        int label = key.AsInt32();
+        return label == Constants.EXP || label == Constants.NBF 
+                || label == Constants.IAT || label == Constants.CTI;
+    }
+    
+    private static int compareKeys(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return a.length - b.length;
+        }
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+    
+    private static int writeTime(byte[] buf, int off, int label, long time) {
+        if (time == ABSENT) {
+            return off;
+        }
+        buf[off++] = (byte)label;
+        if (time < 0) {
+            return writeHead(buf, off, CborReader.NEGATIVE, -1 - time);
+        }
+        return writeHead(buf, off, CborReader.UNSIGNED, time);
+    }
+    
+    /**
+     * @param value  an unsigned argument
+     * @return  the length of a CBOR head carrying this argument
+     */
+    private static int headLength(long value) {
+        if (value < 24) {
+            return 1;
+        } else if (value < 0x100) {
+            return 2;
+        } else if (value < 0x10000) {
+            return 3;
+        } else if (value < 0x100000000L) {
+            return 5;
+        }
+        return 9;
+    }
+    
+    private static int writeHead(byte[] buf, int off, int major, long value) {
+        int len = headLength(value);
+        int mt = major << 5;
+        switch (len) {
+        case 1:
+            buf[off] = (byte)(mt | value);
+            return off + 1;
+        case 2:
+            buf[off] = (byte)(mt | 24);
+            break;
+        case 3:
+            buf[off] = (byte)(mt | 25);
+            break;
+        case 5:
+            buf[off] = (byte)(mt | 26);
+            break;
+        default:
+            buf[off] = (byte)(mt | 27);
+        }
+        for (int i = len - 1; i > 0; i--) {
+            buf[off + i] = (byte)value;
+            value >>>= 8;
+        }
+        return off + len;
+    }
+}
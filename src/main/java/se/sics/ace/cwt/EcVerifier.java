@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA384Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.WNafUtil;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.CoseException;
+import COSE.KeyKeys;
+import COSE.OneKey;
+
+/**
+ * An ECDSA verifier for one public key, that is set up once and shared 
+ * between threads.
+ * 
+ * The COSE library rebuilds the curve and the public point from the 
+ * <code>OneKey</code> for every signature, so the window tables that 
+ * BouncyCastle precomputes for the point are thrown away each time.  This
+ * class keeps the point, with its tables computed up front, and uses the 
+ * optimized curve implementations for the NIST curves.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class EcVerifier {
+    
+    /**
+     * The domain parameters by COSE curve identifier
+     */
+    private static final Map<CBORObject, ECDomainParameters> domains 
+        = new ConcurrentHashMap<>();
+    
+    private final ECPublicKeyParameters params;
+    
+    private EcVerifier(ECPublicKeyParameters params) {
+        this.params = params;
+    }
+    
+    /**
+     * Creates a verifier for a public key.
+     * 
+     * @param key  the public key
+     * @return  the verifier or null if this is not a key on a supported 
+     *     curve
+     * @throws CoseException  if the point is not on the curve
+     */
+    static EcVerifier create(OneKey key) throws CoseException {
+        if (key == null 
+                || !KeyKeys.KeyType_EC2.equals(key.get(KeyKeys.KeyType))) {
+            return null;
+        }
+        CBORObject crv = key.get(KeyKeys.EC2_Curve);
+        CBORObject x = key.get(KeyKeys.EC2_X);
+        CBORObject y = key.get(KeyKeys.EC2_Y);
+        if (crv == null || x == null || y == null) {
+            return null;
+        }
+        ECDomainParameters domain = domain(crv);
+        if (domain == null) {
+            return null;
+        }
+        ECPoint q;
+        try {
+            q = domain.getCurve().validatePoint(
+                    new BigInteger(1, x.GetByteString()), 
+                    new BigInteger(1, y.GetByteString()));
+        } catch (IllegalArgumentException e) {
+            throw new CoseException("Invalid EC public key");
+        }
+        WNafUtil.precompute(q, 
+                WNafUtil.getWindowSize(domain.getN().bitLength()), true);
+        return new EcVerifier(new ECPublicKeyParameters(q, domain));
+    }
+    
+    private static ECDomainParameters domain(CBORObject crv) {
+        ECDomainParameters domain = domains.get(crv);
+        if (domain != null) {
+            return domain;
+        }
+        String name;
+        if (KeyKeys.EC2_P256.equals(crv)) {
+            name = "secp256r1";
+        } else if (KeyKeys.EC2_P384.equals(crv)) {
+            name = "secp384r1";
+        } else if (KeyKeys.EC2_P521.equals(crv)) {
+            name = "secp521r1";
+        } else {
+            return null;
+        }
+        X9ECParameters x9 = CustomNamedCurves.getByName(name);
+        domain = new ECDomainParameters(x9.getCurve(), x9.getG(), 
+                x9.getN(), x9.getH());
+        ECDomainParameters old = domains.putIfAbsent(crv, domain);
+        return (old != null) ? old : domain;
+    }
+    
+    /**
+     * Verify a COSE signature.
+     * 
+     * @param alg  the signature algorithm
+     * @param toBeSigned  the encoded Sig_structure
+     * @param signature  the signature, r and s concatenated
+     * @return  true if the signature is valid
+     * @throws CoseException  if the algorithm is not ECDSA
+     */
+    boolean verify(AlgorithmID alg, byte[] toBeSigned, byte[] signature) 
+            throws CoseException {
+        Digest digest;
+        switch (alg) {
+        case ECDSA_256:
+            digest = new SHA256Digest();
+            break;
+        case ECDSA_384:
+            digest = new SHA384Digest();
+            break;
+        case ECDSA_512:
+            digest = new SHA512Digest();
+            break;
+        default:
+            throw new CoseException("Unsupported algorithm specified");
+        }
+        digest.update(toBeSigned, 0, toBeSigned.length);
+        byte[] hash = new byte[digest.getDigestSize()];
+        digest.doFinal(hash, 0);
+        
+        int half = signature.length / 2;
+        if (half == 0 || signature.length % 2 != 0) {
+            return false;
+        }
+        byte[] r = new byte[half];
+        byte[] s = new byte[half];
+        System.arraycopy(signature, 0, r, 0, half);
+        System.arraycopy(signature, half, s, 0, half);
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, this.params);
+        return signer.verifySignature(hash, new BigInteger(1, r), 
+                new BigInteger(1, s));
+    }
+}
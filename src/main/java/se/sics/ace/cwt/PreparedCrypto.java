@@ -0,0 +1,487 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.CoseException;
+import COSE.Encrypt0Message;
+import COSE.HeaderKeys;
+import COSE.MAC0Message;
+import COSE.MessageTag;
+import se.sics.ace.AceException;
+
+/**
+ * Crypto processing for COSE messages with a single symmetric key, that 
+ * keeps keyed engine instances for each thread instead of setting up the
+ * key schedule for every message.
+ * 
+ * Only messages of the shape this library produces, i.e. a tagged message 
+ * with only the algorithm in the protected header, are handled.  For all 
+ * other messages <code>verify()</code> returns null and the caller falls 
+ * back to the COSE library.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+abstract class PreparedCrypto {
+    
+    /**
+     * Shared source of IVs
+     */
+    static final SecureRandom random = new SecureRandom();
+    
+    /**
+     * The context string of the MAC_structure for MAC0, as used by the 
+     * COSE library
+     */
+    static final String MAC0_CONTEXT = mac0Context();
+    
+    /**
+     * The context string of the Enc_structure for Encrypt0, as used by the
+     * COSE library.  Prepared messages must match the library, so that 
+     * prepared and plain contexts interoperate.
+     */
+    static final String ENCRYPT0_CONTEXT = encrypt0Context();
+    
+    /**
+     * The message type
+     */
+    final MessageTag tag;
+    
+    /**
+     * The algorithm
+     */
+    final AlgorithmID alg;
+    
+    /**
+     * The encoded protected header
+     */
+    final byte[] protectedBytes;
+    
+    /**
+     * The kid to put in the unprotected header or null
+     */
+    final CBORObject kid;
+    
+    /**
+     * The encoded tag, array header and protected header of a message
+     */
+    final byte[] head;
+    
+    /**
+     * The encoded kid entry of the unprotected header, empty if there is
+     * no kid
+     */
+    final byte[] kidEntry;
+    
+    private static final int KID_LABEL = HeaderKeys.KID.AsCBOR().AsInt32();
+    
+    private static final int IV_LABEL = HeaderKeys.IV.AsCBOR().AsInt32();
+    
+    PreparedCrypto(MessageTag tag, AlgorithmID alg, CBORObject kid) {
+        this.tag = tag;
+        this.alg = alg;
+        this.kid = kid;
+        this.protectedBytes = CBORObject.NewMap().Add(
+                HeaderKeys.Algorithm.AsCBOR(), alg.AsCBOR()).EncodeToBytes();
+        this.head = concat(header(CborReader.TAG, tag.value), 
+                header(CborReader.ARRAY, tag == MessageTag.MAC0 ? 4 : 3),
+                header(CborReader.BYTES, this.protectedBytes.length),
+                this.protectedBytes);
+        this.kidEntry = (kid == null) ? new byte[0] : concat(
+                HeaderKeys.KID.AsCBOR().EncodeToBytes(), kid.EncodeToBytes());
+    }
+    
+    /**
+     * Creates prepared crypto processing for a context.
+     * 
+     * @param tag  the message type
+     * @param key  the raw symmetric key
+     * @param alg  the algorithm
+     * @param kid  the kid to put in the unprotected header or null
+     * @return  the prepared processing or null if there is none for this 
+     *     message type, algorithm and key
+     */
+    static PreparedCrypto create(MessageTag tag, byte[] key, 
+            CBORObject alg, CBORObject kid) {
+        if (key == null || alg == null) {
+            return null;
+        }
+        AlgorithmID algId;
+        try {
+            algId = AlgorithmID.FromCBOR(alg);
+        } catch (CoseException e) {
+            return null;
+        }
+        if (key.length != algId.getKeySize() / 8) {
+            return null;
+        }
+        switch (tag) {
+        case MAC0:
+            return PreparedMac0.create(algId, key, kid);
+        case Encrypt0:
+            return PreparedEncrypt0.create(algId, key, kid);
+        default:
+            return null;
+        }
+    }
+    
+    /**
+     * Wrap a payload in a COSE message.
+     * 
+     * @param content  the payload
+     * @return  the tagged COSE message
+     * @throws CoseException 
+     * @throws AceException 
+     */
+    abstract CBORObject encode(byte[] content) 
+            throws CoseException, AceException;
+    
+    /**
+     * Wrap a payload in a COSE message and return the encoded message as 
+     * a sequence of byte arrays, so that it can be written out without 
+     * building it as a CBOR object first.
+     * 
+     * @param content  the payload
+     * @return  the parts of the encoded message, in order
+     * @throws CoseException 
+     * @throws AceException 
+     */
+    byte[][] encodeParts(byte[] content) throws CoseException, AceException {
+        return new byte[][] {encode(content).EncodeToBytes()};
+    }
+    
+    /**
+     * Verify a COSE message and return its payload.
+     * 
+     * @param raw  the buffer containing the raw COSE message
+     * @param off  the offset of the message
+     * @param len  the length of the message
+     * @return  the payload or null if the message does not have the 
+     *     expected shape
+     * @throws AceException  if the message fails verification
+     * @throws Exception  if decryption fails, as thrown by the COSE library
+     */
+    byte[] verify(byte[] raw, int off, int len) 
+            throws AceException, Exception {
+        Parsed msg = parse(raw, off, len);
+        if (msg == null) {
+            return null;
+        }
+        return verify(raw, msg);
+    }
+    
+    /**
+     * Verify a parsed COSE message and return its payload.
+     * 
+     * @param raw  the raw COSE message
+     * @param msg  the positions of the parts of the message
+     * @return  the payload or null if the message does not have the 
+     *     expected shape
+     * @throws AceException  if the message fails verification
+     * @throws Exception  if decryption fails, as thrown by the COSE library
+     */
+    abstract byte[] verify(byte[] raw, Parsed msg) 
+            throws AceException, Exception;
+    
+    /**
+     * Finds the parts of a COSE message of the shape this library produces,
+     * i.e. a tagged message with only the algorithm in the protected header 
+     * and a byte string kid and IV, if any, in the unprotected header.
+     * 
+     * @param raw  the buffer containing the raw COSE message
+     * @param off  the offset of the message
+     * @param len  the length of the message
+     * @return  the positions of the parts or null if the message does not
+     *     have the expected shape
+     */
+    Parsed parse(byte[] raw, int off, int len) {
+        Parsed msg = new Parsed();
+        try {
+            CborReader reader = new CborReader(raw, off, len);
+            if (reader.peekMajorType() != CborReader.TAG 
+                    || reader.readTag() != this.tag.value) {
+                return null;
+            }
+            int size = (this.tag == MessageTag.MAC0) ? 4 : 3;
+            if (reader.peekMajorType() != CborReader.ARRAY 
+                    || reader.readArrayHeader() != size) {
+                return null;
+            }
+            if (reader.peekMajorType() != CborReader.BYTES) {
+                return null;
+            }
+            int hlen = reader.readByteStringHeader();
+            if (!reader.regionEquals(reader.position(), hlen, 
+                    this.protectedBytes)) {
+                return null;
+            }
+            reader.advance(hlen);
+            
+            if (reader.peekMajorType() != CborReader.MAP) {
+                return null;
+            }
+            long entries = reader.readMapHeader();
+            for (long i = 0; entries == CborReader.INDEFINITE 
+                    ? !reader.isBreak() : i < entries; i++) {
+                long label = 0;
+                if (reader.peekMajorType() == CborReader.UNSIGNED) {
+                    label = reader.readInt();
+                } else {
+                    reader.skip();
+                }
+                if (label != KID_LABEL && label != IV_LABEL) {
+                    reader.skip();
+                    continue;
+                }
+                if (reader.peekMajorType() != CborReader.BYTES) {
+                    return null;
+                }
+                hlen = reader.readByteStringHeader();
+                if (label == KID_LABEL) {
+                    if (msg.kidOff >= 0) {
+                        return null;
+                    }
+                    msg.kidOff = reader.position();
+                    msg.kidLen = hlen;
+                } else {
+                    if (msg.ivOff >= 0) {
+                        return null;
+                    }
+                    msg.ivOff = reader.position();
+                    msg.ivLen = hlen;
+                }
+                reader.advance(hlen);
+            }
+            if (entries == CborReader.INDEFINITE) {
+                reader.readBreak();
+            }
+            
+            if (reader.peekMajorType() != CborReader.BYTES) {
+                return null;
+            }
+            msg.contentLen = reader.readByteStringHeader();
+            msg.contentOff = reader.position();
+            reader.advance(msg.contentLen);
+            if (size == 4) {
+                if (reader.peekMajorType() != CborReader.BYTES) {
+                    return null;
+                }
+                msg.tagLen = reader.readByteStringHeader();
+                msg.tagOff = reader.position();
+                reader.advance(msg.tagLen);
+            }
+            if (reader.hasMore()) {
+                return null;
+            }
+        } catch (AceException e) {
+            //Leave error reporting to the COSE library
+            return null;
+        }
+        return msg;
+    }
+    
+    /**
+     * Builds the unprotected header of a message.
+     * 
+     * @return  the unprotected header, containing the kid if there is one
+     */
+    CBORObject unprotected() {
+        CBORObject unprotected = CBORObject.NewMap();
+        if (this.kid != null) {
+            unprotected.Add(HeaderKeys.KID.AsCBOR(), this.kid);
+        }
+        return unprotected;
+    }
+    
+    /**
+     * The positions of the parts of a raw COSE message.
+     */
+    static final class Parsed {
+        
+        /**
+         * The payload or ciphertext
+         */
+        int contentOff, contentLen;
+        
+        /**
+         * The MAC tag
+         */
+        int tagOff = -1, tagLen;
+        
+        /**
+         * The kid from the unprotected header
+         */
+        int kidOff = -1, kidLen;
+        
+        /**
+         * The IV from the unprotected header
+         */
+        int ivOff = -1, ivLen;
+        
+        /**
+         * @param raw  the raw message
+         * @return  the kid or null if there is none
+         */
+        CBORObject getKid(byte[] raw) {
+            if (this.kidOff < 0) {
+                return null;
+            }
+            byte[] kid = new byte[this.kidLen];
+            System.arraycopy(raw, this.kidOff, kid, 0, this.kidLen);
+            return CBORObject.FromObject(kid);
+        }
+    }
+    
+    /**
+     * Encodes the header of a definite length CBOR item.
+     * 
+     * @param majorType  the major type
+     * @param length  the length or value
+     * @return  the encoded header
+     */
+    static byte[] header(int majorType, long length) {
+        int mt = majorType << 5;
+        if (length < 24) {
+            return new byte[] {(byte)(mt | length)};
+        } else if (length < 0x100) {
+            return new byte[] {(byte)(mt | 24), (byte)length};
+        } else if (length < 0x10000) {
+            return new byte[] {(byte)(mt | 25), (byte)(length >>> 8), 
+                    (byte)length};
+        } else if (length < 0x100000000L) {
+            return new byte[] {(byte)(mt | 26), (byte)(length >>> 24), 
+                    (byte)(length >>> 16), (byte)(length >>> 8), 
+                    (byte)length};
+        }
+        byte[] ret = new byte[9];
+        ret[0] = (byte)(mt | 27);
+        for (int i = 8; i > 0; i--) {
+            ret[i] = (byte)length;
+            length >>>= 8;
+        }
+        return ret;
+    }
+    
+    /**
+     * Concatenates byte arrays.
+     * 
+     * @param parts  the arrays
+     * @return  the concatenation
+     */
+    static byte[] concat(byte[]... parts) {
+        byte[] ret = new byte[length(parts)];
+        int off = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, ret, off, part.length);
+            off += part.length;
+        }
+        return ret;
+    }
+    
+    /**
+     * @param parts  the parts of a message
+     * @return  the length of the message
+     */
+    static int length(byte[]... parts) {
+        int len = 0;
+        for (byte[] part : parts) {
+            len += part.length;
+        }
+        return len;
+    }
+    
+    /**
+     * Writes a message into a buffer, or nothing if it does not fit.
+     * 
+     * @param out  the buffer
+     * @param parts  the parts of the message
+     * @throws BufferOverflowException  if the message does not fit
+     */
+    static void put(ByteBuffer out, byte[]... parts) {
+        if (out.remaining() < length(parts)) {
+            throw new BufferOverflowException();
+        }
+        for (byte[] part : parts) {
+            out.put(part);
+        }
+    }
+    
+    /**
+     * Compares a region of a buffer to a byte array in constant time.
+     * 
+     * @param buf  the buffer
+     * @param off  the offset of the region
+     * @param len  the length of the region
+     * @param expected  the expected bytes
+     * @return  true if they are equal
+     */
+    static boolean constantTimeEquals(byte[] buf, int off, int len, 
+            byte[] expected) {
+        if (len != expected.length) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < len; i++) {
+            diff |= buf[off + i] ^ expected[i];
+        }
+        return diff == 0;
+    }
+    
+    /**
+     * @return  the context string the COSE library uses for MAC0 
+     */
+    private static String mac0Context() {
+        return new MAC0Message() {
+            String context() {
+                return this.strContext;
+            }
+        }.context();
+    }
+    
+    /**
+     * @return  the context string the COSE library uses for Encrypt0 
+     */
+    private static String encrypt0Context() {
+        return new Encrypt0Message() {
+            String context() {
+                return this.context;
+            }
+        }.context();
+    }
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.CoseException;
+import COSE.HeaderKeys;
+import COSE.MessageTag;
+
+/**
+ * Prepared processing of Encrypt0 messages, with one keyed AES-GCM or 
+ * AES-CCM instance per thread and a precomputed Enc_structure.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class PreparedEncrypt0 extends PreparedCrypto {
+    
+    /**
+     * The encoded IV label of the unprotected header
+     */
+    private static final byte[] IV_ENTRY 
+        = HeaderKeys.IV.AsCBOR().EncodeToBytes();
+    
+    /**
+     * The encoded Enc_structure, used as additional authenticated data
+     */
+    private final byte[] aad;
+    
+    /**
+     * The length of the IV in bytes
+     */
+    private final int ivLength;
+    
+    /**
+     * The length of the tag in bits
+     */
+    private final int tagBits;
+    
+    /**
+     * True for GCM, false for CCM
+     */
+    private final boolean gcm;
+    
+    /**
+     * The keyed GCM cipher of each thread
+     */
+    private final ThreadLocal<GCMBlockCipher> gcms;
+    
+    /**
+     * The keyed CCM cipher of each thread
+     */
+    private final ThreadLocal<AesCcm> ccms;
+    
+    private PreparedEncrypt0(AlgorithmID alg, final byte[] key, 
+            CBORObject kid, int ivLength, boolean gcm) {
+        super(MessageTag.Encrypt0, alg, kid);
+        this.ivLength = ivLength;
+        this.gcm = gcm;
+        this.tagBits = gcm ? 128 : alg.getTagSize();
+        CBORObject encStructure = CBORObject.NewArray();
+        encStructure.Add(ENCRYPT0_CONTEXT);
+        encStructure.Add(this.protectedBytes);
+        encStructure.Add(new byte[0]);
+        this.aad = encStructure.EncodeToBytes();
+        final int macSize = this.tagBits / 8;
+        this.gcms = new ThreadLocal<GCMBlockCipher>() {
+            @Override
+            protected GCMBlockCipher initialValue() {
+                GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+                cipher.init(true, new AEADParameters(new KeyParameter(key), 
+                        128, new byte[12]));
+                return cipher;
+            }
+        };
+        this.ccms = new ThreadLocal<AesCcm>() {
+            @Override
+            protected AesCcm initialValue() {
+                return new AesCcm(key, macSize);
+            }
+        };
+    }
+    
+    /**
+     * Create prepared processing for an encryption algorithm.
+     * 
+     * @param alg  the algorithm
+     * @param key  the raw key, of the right size for alg
+     * @param kid  the kid to put in the unprotected header or null
+     * @return  the prepared processing or null if alg is not an AES-GCM or
+     *     AES-CCM algorithm
+     */
+    static PreparedEncrypt0 create(AlgorithmID alg, byte[] key, 
+            CBORObject kid) {
+        switch (alg) {
+        case AES_GCM_128:
+        case AES_GCM_192:
+        case AES_GCM_256:
+            return new PreparedEncrypt0(alg, key.clone(), kid, 12, true);
+        case AES_CCM_16_64_128:
+        case AES_CCM_16_64_256:
+        case AES_CCM_16_128_128:
+        case AES_CCM_16_128_256:
+            return new PreparedEncrypt0(alg, key.clone(), kid, 13, false);
+        case AES_CCM_64_64_128:
+        case AES_CCM_64_64_256:
+        case AES_CCM_64_128_128:
+        case AES_CCM_64_128_256:
+            return new PreparedEncrypt0(alg, key.clone(), kid, 7, false);
+        default:
+            return null;
+        }
+    }
+    
+    private byte[] process(boolean encrypt, byte[] iv, byte[] in, int off, 
+            int len) throws InvalidCipherTextException {
+        if (!this.gcm) {
+            AesCcm ccm = this.ccms.get();
+            if (encrypt) {
+                return ccm.encrypt(iv, this.aad, in);
+            }
+            return ccm.decrypt(iv, this.aad, in, off, len);
+        }
+        GCMBlockCipher cipher = this.gcms.get();
+        //A null key reuses the key schedule and hash key of the last init
+        cipher.init(encrypt, new AEADParameters(null, this.tagBits, iv, 
+                this.aad));
+        byte[] out = new byte[cipher.getOutputSize(len)];
+        int outLen = cipher.processBytes(in, off, len, out, 0);
+        cipher.doFinal(out, outLen);
+        return out;
+    }
+
+    /**
+     * Encrypt a payload with a fresh IV.
+     * 
+     * @param iv  the buffer to put the IV in
+     * @param content  the payload
+     * @return  the ciphertext
+     * @throws CoseException 
+     */
+    private byte[] encrypt(byte[] iv, byte[] content) throws CoseException {
+        random.nextBytes(iv);
+        try {
+            return process(true, iv, content, 0, content.length);
+        } catch (InvalidCipherTextException e) {
+            //Cannot happen when encrypting
+            throw new CoseException(e.getMessage());
+        }
+    }
+
+    @Override
+    CBORObject encode(byte[] content) throws CoseException {
+        byte[] iv = new byte[this.ivLength];
+        byte[] ciphertext = encrypt(iv, content);
+        CBORObject msg = CBORObject.NewArray();
+        msg.Add(this.protectedBytes);
+        msg.Add(unprotected().Add(HeaderKeys.IV.AsCBOR(), iv));
+        msg.Add(ciphertext);
+        return CBORObject.FromObjectAndTag(msg, this.tag.value);
+    }
+    
+    @Override
+    byte[][] encodeParts(byte[] content) throws CoseException {
+        byte[] iv = new byte[this.ivLength];
+        byte[] ciphertext = encrypt(iv, content);
+        return new byte[][] {this.head, 
+                header(CborReader.MAP, this.kid == null ? 1 : 2), 
+                this.kidEntry, IV_ENTRY, 
+                header(CborReader.BYTES, iv.length), iv,
+                header(CborReader.BYTES, ciphertext.length), ciphertext};
+    }
+
+    @Override
+    byte[] verify(byte[] raw, Parsed msg) throws InvalidCipherTextException {
+        if (msg.ivLen != this.ivLength) {
+            //Leave error reporting to the COSE library
+            return null;
+        }
+        byte[] iv = new byte[msg.ivLen];
+        System.arraycopy(raw, msg.ivOff, iv, 0, msg.ivLen);
+        return process(false, iv, raw, msg.contentOff, msg.contentLen);
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.CoseException;
+import COSE.MessageTag;
+import se.sics.ace.AceException;
+
+/**
+ * Prepared processing for a keyring of symmetric keys identified by kid. 
+ * Messages are parsed once and verified with the key their kid selects.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class PreparedKeyring extends PreparedCrypto {
+    
+    /**
+     * The prepared processing for each kid
+     */
+    private final Map<CBORObject, PreparedCrypto> byKid;
+    
+    /**
+     * The prepared processing for the current kid or null
+     */
+    private final PreparedCrypto current;
+    
+    private PreparedKeyring(PreparedCrypto any, 
+            Map<CBORObject, PreparedCrypto> byKid, PreparedCrypto current) {
+        super(any.tag, any.alg, any.kid);
+        this.byKid = byKid;
+        this.current = current;
+    }
+    
+    /**
+     * Creates prepared processing for a keyring.
+     * 
+     * @param tag  the message type
+     * @param keys  the raw symmetric keys by kid
+     * @param alg  the algorithm
+     * @param currentKid  the kid of the key for creating messages or null
+     * @return  the prepared processing or null if there is none for this 
+     *     message type, algorithm and keys
+     */
+    static PreparedKeyring create(MessageTag tag, Map<CBORObject, byte[]> keys,
+            CBORObject alg, CBORObject currentKid) {
+        Map<CBORObject, PreparedCrypto> byKid = new HashMap<>();
+        PreparedCrypto any = null;
+        for (Map.Entry<CBORObject, byte[]> e : keys.entrySet()) {
+            PreparedCrypto p = PreparedCrypto.create(
+                    tag, e.getValue(), alg, e.getKey());
+            if (p == null) {
+                return null;
+            }
+            byKid.put(e.getKey(), p);
+            any = p;
+        }
+        if (any == null) {
+            return null;
+        }
+        return new PreparedKeyring(any, byKid, 
+                currentKid == null ? null : byKid.get(currentKid));
+    }
+
+    @Override
+    CBORObject encode(byte[] content) throws CoseException, AceException {
+        if (this.current == null) {
+            throw new AceException("No key in crypto context");
+        }
+        return this.current.encode(content);
+    }
+    
+    @Override
+    byte[][] encodeParts(byte[] content) throws CoseException, AceException {
+        if (this.current == null) {
+            throw new AceException("No key in crypto context");
+        }
+        return this.current.encodeParts(content);
+    }
+
+    @Override
+    byte[] verify(byte[] raw, Parsed msg) throws AceException, Exception {
+        CBORObject kid = msg.getKid(raw);
+        PreparedCrypto p = (kid == null) ? this.current : this.byKid.get(kid);
+        if (p == null) {
+            throw new AceException("No key for kid");
+        }
+        return p.verify(raw, msg);
+    }
+}
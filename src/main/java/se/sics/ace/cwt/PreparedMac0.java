@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.io.ByteArrayOutputStream;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA384Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.MessageTag;
+import se.sics.ace.AceException;
+
+/**
+ * Prepared processing of MAC0 messages, with one keyed HMAC or AES-CBC-MAC 
+ * instance per thread.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class PreparedMac0 extends PreparedCrypto {
+    
+    /**
+     * The encoded MAC_structure up to the header of the payload
+     */
+    private final byte[] prefix;
+    
+    /**
+     * The length of the tag in bytes
+     */
+    private final int tagLength;
+    
+    /**
+     * The keyed MAC of each thread
+     */
+    private final ThreadLocal<Mac> macs;
+    
+    private PreparedMac0(AlgorithmID alg, final byte[] key, CBORObject kid) {
+        super(MessageTag.MAC0, alg, kid);
+        this.tagLength = alg.getTagSize() / 8;
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        byte[] context = CBORObject.FromObject(MAC0_CONTEXT).EncodeToBytes();
+        byte[] prot = CBORObject.FromObject(this.protectedBytes)
+                .EncodeToBytes();
+        prefix.write(0x84);
+        prefix.write(context, 0, context.length);
+        prefix.write(prot, 0, prot.length);
+        //Empty external data
+        prefix.write(0x40);
+        this.prefix = prefix.toByteArray();
+        final AlgorithmID a = alg;
+        this.macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                Mac mac = newMac(a);
+                mac.init(new KeyParameter(key));
+                return mac;
+            }
+        };
+    }
+    
+    /**
+     * Create prepared processing for a MAC algorithm.
+     * 
+     * @param alg  the algorithm
+     * @param key  the raw key, of the right size for alg
+     * @param kid  the kid to put in the unprotected header or null
+     * @return  the prepared processing or null if alg is not a MAC 
+     *     algorithm
+     */
+    static PreparedMac0 create(AlgorithmID alg, byte[] key, CBORObject kid) {
+        if (newMac(alg) == null) {
+            return null;
+        }
+        return new PreparedMac0(alg, key.clone(), kid);
+    }
+    
+    private static Mac newMac(AlgorithmID alg) {
+        Digest digest;
+        switch (alg) {
+        case HMAC_SHA_256_64:
+        case HMAC_SHA_256:
+            digest = new SHA256Digest();
+            break;
+        case HMAC_SHA_384:
+            digest = new SHA384Digest();
+            break;
+        case HMAC_SHA_512:
+            digest = new SHA512Digest();
+            break;
+        case AES_CBC_MAC_128_64:
+        case AES_CBC_MAC_128_128:
+        case AES_CBC_MAC_256_64:
+        case AES_CBC_MAC_256_128:
+            return new CBCBlockCipherMac(new AESEngine(), alg.getTagSize());
+        default:
+            return null;
+        }
+        return new HMac(digest);
+    }
+    
+    /**
+     * Compute the tag over a payload.
+     */
+    private byte[] tag(byte[] buf, int off, int len) {
+        Mac mac = this.macs.get();
+        mac.update(this.prefix, 0, this.prefix.length);
+        byte[] header = header(CborReader.BYTES, len);
+        mac.update(header, 0, header.length);
+        mac.update(buf, off, len);
+        byte[] out = new byte[mac.getMacSize()];
+        mac.doFinal(out, 0);
+        if (out.length == this.tagLength) {
+            return out;
+        }
+        byte[] ret = new byte[this.tagLength];
+        System.arraycopy(out, 0, ret, 0, this.tagLength);
+        return ret;
+    }
+
+    @Override
+    CBORObject encode(byte[] content) {
+        CBORObject msg = CBORObject.NewArray();
+        msg.Add(this.protectedBytes);
+        msg.Add(unprotected());
+        msg.Add(content);
+        msg.Add(tag(content, 0, content.length));
+        return CBORObject.FromObjectAndTag(msg, this.tag.value);
+    }
+    
+    @Override
+    byte[][] encodeParts(byte[] content) {
+        byte[] tag = tag(content, 0, content.length);
+        return new byte[][] {this.head, 
+                header(CborReader.MAP, this.kid == null ? 0 : 1), 
+                this.kidEntry,
+                header(CborReader.BYTES, content.length), content,
+                header(CborReader.BYTES, tag.length), tag};
+    }
+
+    @Override
+    byte[] verify(byte[] raw, Parsed msg) throws AceException {
+        if (!constantTimeEquals(raw, msg.tagOff, msg.tagLen, 
+                tag(raw, msg.contentOff, msg.contentLen))) {
+            throw new AceException("Unknown or invalid COSE crypto wrapper");
+        }
+        byte[] payload = new byte[msg.contentLen];
+        System.arraycopy(raw, msg.contentOff, payload, 0, msg.contentLen);
+        return payload;
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The recipients of a crypto context that may process a message recipient
+ * with a given algorithm and kid.
+ * 
+ * The recipient that last processed a message successfully is tried first,
+ * the others follow in the order of the context.  The order is updated 
+ * without locking, so concurrent verifications only race on which 
+ * recipient is tried first.  How often the first recipient succeeds is 
+ * reported through <code>CwtMetrics.recipientAttempts()</code>.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+final class RecipientCandidates {
+    
+    /**
+     * The candidates for messages that no recipient can process
+     */
+    static final RecipientCandidates EMPTY 
+        = new RecipientCandidates(new RecipientKey[0]);
+
+    private final RecipientKey[] keys;
+    
+    /**
+     * The index of the recipient that succeeded last
+     */
+    private final AtomicInteger last = new AtomicInteger();
+    
+    private RecipientCandidates(RecipientKey[] keys) {
+        this.keys = keys;
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param keys  the candidate recipients in the order of the context
+     */
+    RecipientCandidates(List<RecipientKey> keys) {
+        this(keys.toArray(new RecipientKey[keys.size()]));
+    }
+    
+    /**
+     * @return  the number of candidates
+     */
+    int size() {
+        return this.keys.length;
+    }
+    
+    /**
+     * @return  the index of the candidate to try first, pass it to 
+     *     <code>get()</code> for the whole trial of one message
+     */
+    int first() {
+        return this.last.get();
+    }
+    
+    /**
+     * @param first  the index returned by <code>first()</code>
+     * @param attempt  the number of the attempt, from 0 to size() - 1
+     * @return  the index of the candidate to try at this attempt
+     */
+    static int index(int first, int attempt) {
+        if (attempt == 0) {
+            return first;
+        }
+        return attempt <= first ? attempt - 1 : attempt;
+    }
+    
+    /**
+     * @param index  the index of a candidate
+     * @return  the candidate
+     */
+    RecipientKey get(int index) {
+        return this.keys[index];
+    }
+    
+    /**
+     * Records that a candidate processed a message, so that it is tried 
+     * first for the next one.
+     * 
+     * @param index  the index of the candidate
+     */
+    void success(int index) {
+        if (this.last.get() != index) {
+            this.last.set(index);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.CoseException;
+import COSE.HeaderKeys;
+import COSE.KeyKeys;
+import COSE.OneKey;
+import COSE.Recipient;
+
+/**
+ * A recipient of a crypto context together with the COSE key that is used 
+ * to process incoming messages for this recipient.
+ * 
+ * For direct recipients the key is built once when the context is created,
+ * for all other recipient algorithms it is derived on each use, since 
+ * deriving it may change the recipient.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+class RecipientKey {
+
+    private final Recipient recipient;
+    
+    private final CBORObject kid;
+    
+    private final CBORObject alg;
+    
+    private final OneKey key;
+    
+    private final String error;
+    
+    /**
+     * Constructor.
+     * 
+     * @param recipient  the recipient from the crypto context
+     */
+    RecipientKey(Recipient recipient) {
+        this.recipient = recipient;
+        this.kid = recipient.findAttribute(HeaderKeys.KID);
+        this.alg = recipient.findAttribute(HeaderKeys.Algorithm);
+        OneKey key = null;
+        String error = null;
+        if (AlgorithmID.Direct.AsCBOR().equals(this.alg)) {
+            try {
+                key = buildKey();
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+        }
+        this.key = key;
+        this.error = error;
+    }
+    
+    /**
+     * @return  the kid of this recipient or null if it has none
+     */
+    CBORObject getKid() {
+        return this.kid;
+    }
+    
+    /**
+     * @return  the algorithm of this recipient
+     */
+    CBORObject getAlg() {
+        return this.alg;
+    }
+    
+    /**
+     * @return  the COSE key for processing messages to this recipient
+     * @throws Exception 
+     */
+    OneKey getKey() throws Exception {
+        if (this.key != null) {
+            return this.key;
+        }
+        if (this.error != null) {
+            throw new CoseException(this.error);
+        }
+        return buildKey();
+    }
+    
+    private OneKey buildKey() throws Exception {
+        CBORObject key = CBORObject.NewMap();
+        key.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
+        key.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(
+                this.recipient.getKey(AlgorithmID.FromCBOR(this.alg))));
+        return new OneKey(key);
+    }
+}
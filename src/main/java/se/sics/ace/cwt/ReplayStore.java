@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.upokecenter.cbor.CBORObject;
+
+import se.sics.ace.AceException;
+
+/**
+ * Detects replayed CWTs by their cti claim.
+ * 
+ * Each cti is remembered until the exp of its token has passed.  The ctis are
+ * kept in a concurrent map for the replay check and in expiry buckets, 
+ * one for each <code>bucketWidth</code> time units of exp, so that expired
+ * ctis can be dropped a whole bucket at a time.  Buckets are purged as the
+ * time passed to <code>checkAndInsert()</code> advances, so memory is bounded
+ * by the number of tokens that have not yet expired.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class ReplayStore {
+    
+    /**
+     * The width of an expiry bucket, in the same time unit as exp
+     */
+    private final long bucketWidth;
+    
+    /**
+     * How long to remember ctis of tokens without exp claim
+     */
+    private final long defaultLifetime;
+    
+    /**
+     * The exp of each remembered cti
+     */
+    private final Map<Cti, Long> seen = new ConcurrentHashMap<>();
+    
+    /**
+     * The ctis by expiry bucket
+     */
+    private final Map<Long, Queue<Cti>> buckets = new ConcurrentHashMap<>();
+    
+    /**
+     * The index of the bucket at the last purge
+     */
+    private final AtomicLong purged = new AtomicLong(Long.MIN_VALUE);
+    
+    /**
+     * Constructor.
+     * 
+     * @param bucketWidth  the width of an expiry bucket, in the same time 
+     *     unit as the exp claims
+     * @param defaultLifetime  how long to remember the cti of a token that 
+     *     has no exp claim
+     */
+    public ReplayStore(long bucketWidth, long defaultLifetime) {
+        if (bucketWidth <= 0) {
+            throw new IllegalArgumentException(
+                    "bucketWidth must be positive");
+        }
+        if (defaultLifetime <= 0) {
+            throw new IllegalArgumentException(
+                    "defaultLifetime must be positive");
+        }
+        this.bucketWidth = bucketWidth;
+        this.defaultLifetime = defaultLifetime;
+    }
+    
+    /**
+     * Remember the cti of a token and report whether it was seen before.
+     * 
+     * @param token  the token
+     * @param now  the current time, in the same unit as the exp claims
+     * @return  true if the cti was new, false if it is a replay or the 
+     *     token has already expired
+     * @throws AceException  if the token has no cti
+     */
+    public boolean checkAndInsert(CWT token, long now) throws AceException {
+        CBORObject exp = token.getClaim("exp");
+        return insert(new Cti(token.getCtiBytes()), 
+                exp == null ? now + this.defaultLifetime : exp.AsInt64(), 
+                now);
+    }
+    
+    /**
+     * Remember a cti and report whether it was seen before.
+     * 
+     * @param cti  the raw bytes of the cti
+     * @param exp  the exp of the token
+     * @param now  the current time, in the same unit as exp
+     * @return  true if the cti was new, false if it is a replay or exp has 
+     *     already passed
+     */
+    public boolean checkAndInsert(byte[] cti, long exp, long now) {
+        return insert(new Cti(cti.clone()), exp, now);
+    }
+    
+    private boolean insert(Cti cti, long exp, long now) {
+        purgeIfDue(now);
+        if (exp < now) {
+            return false;
+        }
+        Long expO = exp;
+        if (this.seen.putIfAbsent(cti, expO) != null) {
+            return false;
+        }
+        Long index = Math.floorDiv(exp, this.bucketWidth);
+        Queue<Cti> bucket = this.buckets.get(index);
+        if (bucket == null) {
+            Queue<Cti> newBucket = new ConcurrentLinkedQueue<>();
+            bucket = this.buckets.putIfAbsent(index, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        bucket.add(cti);
+        if (this.buckets.get(index) != bucket) {
+            //A concurrent purge with a later time dropped the bucket
+            this.seen.remove(cti, expO);
+        }
+        return true;
+    }
+    
+    /**
+     * Purge once per bucket width, only one thread does the work.
+     */
+    private void purgeIfDue(long now) {
+        long index = Math.floorDiv(now, this.bucketWidth);
+        long last = this.purged.get();
+        if (index > last && this.purged.compareAndSet(last, index)) {
+            purge(now);
+        }
+    }
+    
+    /**
+     * Forget all ctis in buckets that lie entirely before the given time.
+     * 
+     * @param now  the current time, in the same unit as the exp claims
+     */
+    public void purge(long now) {
+        long index = Math.floorDiv(now, this.bucketWidth);
+        Iterator<Map.Entry<Long, Queue<Cti>>> it 
+            = this.buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Queue<Cti>> e = it.next();
+            if (e.getKey() < index) {
+                it.remove();
+                for (Cti cti : e.getValue()) {
+                    this.seen.remove(cti);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return  the number of remembered ctis
+     */
+    public int size() {
+        return this.seen.size();
+    }
+}
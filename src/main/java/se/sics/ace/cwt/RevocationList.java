@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import se.sics.ace.AceException;
+
+/**
+ * A list of revoked CWTs, identified by their cti, to be checked after 
+ * <code>CWT.processCOSE()</code>.
+ * 
+ * Lookups first go to a Bloom filter over the revoked ctis and only 
+ * consult the exact set of revoked ctis if the filter reports a hit, so 
+ * that the check for the common, not revoked, token only touches a few 
+ * words of memory.  Revocations are remembered until the exp of the token 
+ * has passed, at which point they are pruned and the filter is rebuilt.
+ * 
+ * Lookups are lock-free, revocations and pruning are serialized.  A lookup
+ * that finds a revocation due for pruning triggers the pruning, unless 
+ * another thread is already doing it.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class RevocationList {
+    
+    /**
+     * The number of hash functions of the filter
+     */
+    private static final int HASHES = 7;
+    
+    /**
+     * The number of filter bits per expected entry, giving a false positive 
+     * rate below 1% with 7 hash functions
+     */
+    private static final int BITS_PER_ENTRY = 10;
+    
+    /**
+     * The revoked ctis and the exp of their tokens
+     */
+    private final Map<Cti, Long> revoked = new ConcurrentHashMap<>();
+    
+    /**
+     * The number of entries the current filter is sized for
+     */
+    private int capacity;
+    
+    /**
+     * The filter over the keys of revoked
+     */
+    private volatile AtomicLongArray filter;
+    
+    /**
+     * The time after which the next prune is due
+     */
+    private volatile long nextPrune = Long.MAX_VALUE;
+    
+    /**
+     * The minimum time between two prunes
+     */
+    private final long pruneInterval;
+    
+    /**
+     * Serializes revocations and pruning
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * Constructor.
+     * 
+     * @param expectedEntries  the expected number of revoked tokens that 
+     *     have not expired yet, the filter grows if there are more
+     * @param pruneInterval  the minimum time between two prunes, in the 
+     *     same unit as the exp claims
+     */
+    public RevocationList(int expectedEntries, long pruneInterval) {
+        if (expectedEntries <= 0) {
+            throw new IllegalArgumentException(
+                    "expectedEntries must be positive");
+        }
+        if (pruneInterval < 0) {
+            throw new IllegalArgumentException(
+                    "pruneInterval must not be negative");
+        }
+        this.capacity = expectedEntries;
+        this.pruneInterval = pruneInterval;
+        this.filter = newFilter(expectedEntries);
+    }
+    
+    /**
+     * Revoke a token.
+     * 
+     * @param token  the token
+     * @throws AceException  if the token has no cti or no exp
+     */
+    public void revoke(CWT token) throws AceException {
+        if (token.getClaim("exp") == null) {
+            throw new AceException("Cannot revoke a token without exp");
+        }
+        revoke(token.getCtiBytes(), token.getClaim("exp").AsInt64());
+    }
+    
+    /**
+     * Revoke a token by its cti.
+     * 
+     * @param cti  the raw bytes of the cti
+     * @param exp  the exp of the token, the revocation is pruned after it
+     */
+    public void revoke(byte[] cti, long exp) {
+        Cti key = new Cti(cti.clone());
+        this.lock.lock();
+        try {
+            Long old = this.revoked.put(key, exp);
+            if (old != null) {
+                if (old > exp) {
+                    this.revoked.put(key, old);
+                }
+                return;
+            }
+            if (exp < this.nextPrune) {
+                this.nextPrune = exp;
+            }
+            if (this.revoked.size() > this.capacity) {
+                this.capacity *= 2;
+                rebuild();
+            } else {
+                add(this.filter, key);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Checks if a token has been revoked.
+     * 
+     * @param token  the token
+     * @param now  the current time, in the same unit as the exp claims
+     * @return  true if the token is revoked, false if not or if it has no 
+     *     cti
+     * @throws AceException  if the cti is not a byte string
+     */
+    public boolean isRevoked(CWT token, long now) throws AceException {
+        if (token.getClaim("cti") == null) {
+            return false;
+        }
+        return isRevoked(new Cti(token.getCtiBytes()), now);
+    }
+    
+    /**
+     * Checks if a cti has been revoked.
+     * 
+     * @param cti  the raw bytes of the cti
+     * @param now  the current time, in the same unit as the exp claims
+     * @return  true if the cti is revoked
+     */
+    public boolean isRevoked(byte[] cti, long now) {
+        return isRevoked(new Cti(cti), now);
+    }
+    
+    private boolean isRevoked(Cti cti, long now) {
+        if (now > this.nextPrune && this.lock.tryLock()) {
+            try {
+                pruneLocked(now);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        if (!mightContain(this.filter, cti)) {
+            return false;
+        }
+        return this.revoked.containsKey(cti);
+    }
+    
+    /**
+     * Checks that a token has not been revoked.
+     * 
+     * @param token  the token
+     * @param now  the current time, in the same unit as the exp claims
+     * @throws AceException  if the token has been revoked
+     */
+    public void check(CWT token, long now) throws AceException {
+        if (isRevoked(token, now)) {
+            throw new AceException("Token has been revoked");
+        }
+    }
+    
+    /**
+     * Drop the revocations of tokens that have expired and rebuild the 
+     * filter without them.
+     * 
+     * @param now  the current time, in the same unit as the exp claims
+     */
+    public void prune(long now) {
+        this.lock.lock();
+        try {
+            pruneLocked(now);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+    
+    private void pruneLocked(long now) {
+        long next = Long.MAX_VALUE;
+        boolean removed = false;
+        Iterator<Long> it = this.revoked.values().iterator();
+        while (it.hasNext()) {
+            long exp = it.next();
+            if (exp < now) {
+                it.remove();
+                removed = true;
+            } else if (exp < next) {
+                next = exp;
+            }
+        }
+        if (removed) {
+            rebuild();
+        }
+        this.nextPrune = Math.max(next, now + this.pruneInterval);
+    }
+    
+    /**
+     * @return  the number of revoked tokens that have not been pruned
+     */
+    public int size() {
+        return this.revoked.size();
+    }
+    
+    /**
+     * Replace the filter with a new one over the current entries.  Must 
+     * hold the lock.
+     */
+    private void rebuild() {
+        AtomicLongArray f = newFilter(this.capacity);
+        for (Cti cti : this.revoked.keySet()) {
+            add(f, cti);
+        }
+        this.filter = f;
+    }
+    
+    private static AtomicLongArray newFilter(int entries) {
+        long bits = (long)entries * BITS_PER_ENTRY;
+        return new AtomicLongArray((int)Math.min((bits + 63) / 64, 
+                Integer.MAX_VALUE - 8));
+    }
+    
+    private static void add(AtomicLongArray f, Cti cti) {
+        long bits = f.length() * 64L;
+        long h1 = hash(cti.getBytes(), 0x9E3779B97F4A7C15L);
+        long h2 = hash(cti.getBytes(), 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            int word = (int)(bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            do {
+                old = f.get(word);
+            } while ((old & mask) == 0 
+                    && !f.compareAndSet(word, old, old | mask));
+        }
+    }
+    
+    private static boolean mightContain(AtomicLongArray f, Cti cti) {
+        long bits = f.length() * 64L;
+        long h1 = hash(cti.getBytes(), 0x9E3779B97F4A7C15L);
+        long h2 = hash(cti.getBytes(), 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if ((f.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * A seeded FNV-1a hash with a final avalanche step.
+     */
+    private static long hash(byte[] bytes, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe1a85ec3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
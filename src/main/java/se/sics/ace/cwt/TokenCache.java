@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import COSE.CoseException;
+import se.sics.ace.AceException;
+
+/**
+ * A bounded cache of verified CWTs that can be put in front of 
+ * <code>CWT.processCOSE()</code>.
+ * 
+ * Entries are keyed by a SHA-256 digest of the raw token bytes and the crypto
+ * context that was used to verify them.  A successfully verified token is 
+ * kept until its exp claim passes, a token that failed verification is 
+ * remembered for a short, configurable time and rethrows the exception of 
+ * the original verification.  Concurrent misses for the same token are 
+ * collapsed into a single verification.
+ * 
+ * When the cache is full the entry that expires first is evicted.  Failed
+ * verifications have their own, smaller bound, so that a flood of invalid
+ * tokens cannot displace the verified ones.
+ * 
+ * Note that the cache only replaces the crypto processing, callers still need
+ * to check <code>isValid()</code> on the returned token.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class TokenCache {
+
+    /**
+     * The maximum number of cached entries
+     */
+    private final int maxEntries;
+    
+    /**
+     * The maximum number of cached failed verifications
+     */
+    private final int maxFailures;
+    
+    /**
+     * How long a failed verification is remembered
+     */
+    private final long negativeTtl;
+    
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    
+    /**
+     * Orders entries by expiry, ties are broken by insertion order
+     */
+    private static final Comparator<Entry> byExpiry = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = Long.compare(a.expires, b.expires);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        }
+    };
+    
+    /**
+     * The verified tokens by expiry, guarded by itself like all updates 
+     * of the entries
+     */
+    private final TreeSet<Entry> verified = new TreeSet<>(byExpiry);
+    
+    /**
+     * The failed verifications by expiry, guarded by verified
+     */
+    private final TreeSet<Entry> failures = new TreeSet<>(byExpiry);
+    
+    /**
+     * The insertion counter for the entries, guarded by verified
+     */
+    private long seq = 0;
+    
+    private final Map<Key, FutureTask<CWT>> inflight 
+        = new ConcurrentHashMap<>();
+    
+    private static final ThreadLocal<MessageDigest> sha256 
+        = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    
+    /**
+     * Constructor.  At most a quarter of the entries (and at least one) 
+     * are used for failed verifications.
+     * 
+     * @param maxEntries  the maximum number of cached tokens
+     * @param negativeTtl  how long a token that failed verification is 
+     *     remembered, in the same time unit as the exp claims
+     */
+    public TokenCache(int maxEntries, long negativeTtl) {
+        this(maxEntries, Math.max(1, maxEntries / 4), negativeTtl);
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param maxEntries  the maximum number of cached tokens
+     * @param maxFailures  the maximum number of cached failed 
+     *     verifications, at most maxEntries
+     * @param negativeTtl  how long a token that failed verification is 
+     *     remembered, in the same time unit as the exp claims
+     */
+    public TokenCache(int maxEntries, int maxFailures, long negativeTtl) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException(
+                    "maxEntries must be positive");
+        }
+        if (maxFailures < 0 || maxFailures > maxEntries) {
+            throw new IllegalArgumentException(
+                    "maxFailures must be between 0 and maxEntries");
+        }
+        this.maxEntries = maxEntries;
+        this.maxFailures = maxFailures;
+        this.negativeTtl = negativeTtl;
+    }
+    
+    /**
+     * Parse and validate the COSE wrapper of a CWT, or return the 
+     * previously verified CWT for the same bytes and context.
+     * 
+     * @param COSE_CWT  the raw bytes of the COSE object containing the CWT
+     * @param ctx  the crypto context
+     * @param now  the current time, in the same unit as the exp claims
+     * @return  the CWT object wrapped by the COSE object
+     * @throws CoseException
+     * @throws AceException
+     * @throws Exception
+     */
+    public CWT processCOSE(byte[] COSE_CWT, CwtCryptoCtx ctx, long now) 
+            throws CoseException, AceException, Exception {
+        Key key = new Key(COSE_CWT, ctx);
+        Entry e = this.entries.get(key);
+        if (e != null) {
+            if (e.expires >= now) {
+                return e.get();
+            }
+            synchronized (this.verified) {
+                evict(e);
+            }
+        }
+        
+        FutureTask<CWT> task = new FutureTask<>(
+                () -> CWT.processCOSE(COSE_CWT, ctx));
+        FutureTask<CWT> running = this.inflight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+                store(key, task, now);
+            } finally {
+                this.inflight.remove(key, task);
+            }
+        }
+        
+        try {
+            return running.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception)ex.getCause();
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * @return  the number of cached entries, including failures
+     */
+    public int size() {
+        return this.entries.size();
+    }
+    
+    /**
+     * Removes all entries from this cache.
+     */
+    public void clear() {
+        synchronized (this.verified) {
+            this.entries.clear();
+            this.verified.clear();
+            this.failures.clear();
+        }
+    }
+    
+    /**
+     * Removes all entries that have expired.
+     * 
+     * @param now  the current time, in the same unit as the exp claims
+     */
+    public void purge(long now) {
+        synchronized (this.verified) {
+            purge(this.verified, now);
+            purge(this.failures, now);
+        }
+    }
+    
+    private void purge(TreeSet<Entry> byExp, long now) {
+        while (!byExp.isEmpty() && byExp.first().expires < now) {
+            evict(byExp.first());
+        }
+    }
+    
+    /**
+     * Removes an entry, the caller must hold the lock on verified.
+     * 
+     * @param e  the entry
+     */
+    private void evict(Entry e) {
+        (e.cwt != null ? this.verified : this.failures).remove(e);
+        this.entries.remove(e.key, e);
+    }
+    
+    private void store(Key key, FutureTask<CWT> task, long now) 
+            throws InterruptedException {
+        CWT cwt = null;
+        Exception failure = null;
+        long expires;
+        try {
+            cwt = task.get();
+            expires = cwt.getExp();
+            if (expires < now) {
+                //Already expired, don't bother caching it
+                return;
+            }
+        } catch (ExecutionException ex) {
+            if (!(ex.getCause() instanceof Exception) 
+                    || this.maxFailures == 0) {
+                return;
+            }
+            failure = (Exception)ex.getCause();
+            expires = now + this.negativeTtl;
+        }
+        synchronized (this.verified) {
+            Entry e = new Entry(key, cwt, failure, expires, this.seq++);
+            Entry old = this.entries.put(key, e);
+            if (old != null) {
+                (old.cwt != null ? this.verified : this.failures).remove(old);
+            }
+            (cwt != null ? this.verified : this.failures).add(e);
+            while (this.failures.size() > this.maxFailures) {
+                evict(this.failures.first());
+            }
+            while (this.entries.size() > this.maxEntries) {
+                //Evict whatever expires first, expired entries included
+                Entry v = this.verified.isEmpty() 
+                        ? null : this.verified.first();
+                Entry f = this.failures.isEmpty() 
+                        ? null : this.failures.first();
+                evict(f == null || (v != null 
+                        && byExpiry.compare(v, f) < 0) ? v : f);
+            }
+        }
+    }
+    
+    /**
+     * A cached verification result.
+     */
+    private static class Entry {
+        
+        final Key key;
+        
+        final CWT cwt;
+        
+        final Exception failure;
+        
+        final long expires;
+        
+        final long seq;
+        
+        Entry(Key key, CWT cwt, Exception failure, long expires, long seq) {
+            this.key = key;
+            this.cwt = cwt;
+            this.failure = failure;
+            this.expires = expires;
+            this.seq = seq;
+        }
+        
+        CWT get() throws Exception {
+            if (this.cwt == null) {
+                throw this.failure;
+            }
+            return this.cwt;
+        }
+    }
+    
+    /**
+     * The digest of the token bytes together with the crypto context.
+     */
+    private static class Key {
+        
+        private final byte[] digest;
+        
+        private final CwtCryptoCtx ctx;
+        
+        private final int hash;
+        
+        Key(byte[] token, CwtCryptoCtx ctx) {
+            this.digest = sha256.get().digest(token);
+            this.ctx = ctx;
+            this.hash = Arrays.hashCode(this.digest) 
+                    ^ System.identityHashCode(ctx);
+        }
+        
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return this.ctx == other.ctx 
+                    && Arrays.equals(this.digest, other.digest);
+        }
+    }
+}
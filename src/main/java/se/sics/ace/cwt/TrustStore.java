@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.CoseException;
+import COSE.KeyKeys;
+import COSE.OneKey;
+
+/**
+ * A thread-safe store of trusted public keys for verifying Sign and Sign1
+ * messages, indexed by kid and by COSE key thumbprint (RFC 9679).  
+ * 
+ * A token is matched to a key through the kid in its (Sign1) or its 
+ * signers' (Sign) headers, which is looked up first as a kid and then as 
+ * the SHA-256 thumbprint of a key.
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class TrustStore {
+    
+    /**
+     * The labels of the parameters that go into the thumbprint, by key 
+     * type, in deterministic encoding order
+     */
+    private static final Map<Integer, int[]> thumbprintLabels 
+        = new HashMap<>();
+    
+    static {
+        thumbprintLabels.put(1, new int[] {1, -1, -2}); //OKP: kty, crv, x
+        thumbprintLabels.put(2, new int[] {1, -1, -2, -3}); //EC2: +y
+        thumbprintLabels.put(3, new int[] {1, -1, -2}); //RSA: kty, n, e
+        thumbprintLabels.put(4, new int[] {1, -1}); //Symmetric: kty, k
+    }
+    
+    private final Map<CBORObject, OneKey> byKid = new ConcurrentHashMap<>();
+    
+    private final Map<CBORObject, OneKey> byThumbprint 
+        = new ConcurrentHashMap<>();
+    
+    /**
+     * Prepared verifiers for the EC keys
+     */
+    private final Map<OneKey, EcVerifier> verifiers 
+        = new ConcurrentHashMap<>();
+    
+    /**
+     * Adds a key under the kid it carries and its thumbprint.
+     * 
+     * @param key  the public key
+     * @throws CoseException  if the key is missing a parameter needed for 
+     *     the thumbprint
+     */
+    public void add(OneKey key) throws CoseException {
+        add(key.get(KeyKeys.KeyId), key);
+    }
+    
+    /**
+     * Adds a key under a kid and its thumbprint.
+     * 
+     * @param kid  the kid or null to only index the key by thumbprint
+     * @param key  the public key
+     * @throws CoseException  if the key is missing a parameter needed for 
+     *     the thumbprint or is not a valid EC key
+     */
+    public synchronized void add(CBORObject kid, OneKey key) 
+            throws CoseException {
+        CBORObject thumbprint = CBORObject.FromObject(thumbprint(key));
+        EcVerifier verifier = EcVerifier.create(key);
+        if (verifier != null) {
+            this.verifiers.put(key, verifier);
+        }
+        OneKey old = this.byThumbprint.put(thumbprint, key);
+        if (kid != null) {
+            this.byKid.put(kid, key);
+        }
+        if (old != null) {
+            //The key was re-added, the new kid replaces the old ones
+            if (old != key) {
+                this.verifiers.remove(old);
+            }
+            removeKids(old, kid);
+        }
+    }
+    
+    /**
+     * Removes a key.
+     * 
+     * @param key  the key to remove, matched by thumbprint
+     * @return  true if the key was in this store
+     * @throws CoseException  if the key is missing a parameter needed for 
+     *     the thumbprint
+     */
+    public synchronized boolean remove(OneKey key) throws CoseException {
+        OneKey stored = this.byThumbprint.remove(
+                CBORObject.FromObject(thumbprint(key)));
+        if (stored == null) {
+            return false;
+        }
+        this.verifiers.remove(stored);
+        removeKids(stored, null);
+        return true;
+    }
+    
+    /**
+     * Removes the kid entries of a stored key instance.
+     * 
+     * @param stored  the key instance
+     * @param keep  a kid to keep or null
+     */
+    private void removeKids(OneKey stored, CBORObject keep) {
+        for (Iterator<Map.Entry<CBORObject, OneKey>> i 
+                = this.byKid.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<CBORObject, OneKey> e = i.next();
+            if (e.getValue() == stored && !e.getKey().equals(keep)) {
+                i.remove();
+            }
+        }
+    }
+    
+    /**
+     * Finds the key for the kid of a message.
+     * 
+     * @param kid  the kid, as kid or as thumbprint
+     * @return  the key or null if there is none
+     */
+    public OneKey get(CBORObject kid) {
+        if (kid == null) {
+            return null;
+        }
+        OneKey key = this.byKid.get(kid);
+        return (key != null) ? key : this.byThumbprint.get(kid);
+    }
+    
+    /**
+     * @param key  a key from this store
+     * @return  the prepared ECDSA verifier for the key or null if there is 
+     *     none
+     */
+    EcVerifier getVerifier(OneKey key) {
+        return this.verifiers.get(key);
+    }
+    
+    /**
+     * @return  the number of keys in this store
+     */
+    public int size() {
+        return this.byThumbprint.size();
+    }
+    
+    /**
+     * Computes the COSE key thumbprint of a key as specified in RFC 9679, 
+     * i.e. the SHA-256 hash of the deterministic encoding of its required
+     * public parameters.
+     * 
+     * @param key  the key
+     * @return  the thumbprint
+     * @throws CoseException  if the key type is unknown or a required 
+     *     parameter is missing
+     */
+    public static byte[] thumbprint(OneKey key) throws CoseException {
+        CBORObject kty = key.get(KeyKeys.KeyType);
+        int[] labels = (kty != null && kty.CanFitInInt32()) 
+                ? thumbprintLabels.get(kty.AsInt32()) : null;
+        if (labels == null) {
+            throw new CoseException("Unsupported key type for thumbprint");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xa0 | labels.length);
+        for (int label : labels) {
+            CBORObject value = key.get(CBORObject.FromObject(label));
+            if (value == null) {
+                throw new CoseException("Missing key parameter " + label);
+            }
+            byte[] k = CBORObject.FromObject(label).EncodeToBytes();
+            byte[] v = value.EncodeToBytes();
+            out.write(k, 0, k.length);
+            out.write(v, 0, v.length);
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(
+                    out.toByteArray());
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
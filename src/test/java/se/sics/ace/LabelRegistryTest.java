@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.upokecenter.cbor.CBORObject;
+
+/**
+ * Tests of the claim and parameter registry
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class LabelRegistryTest {
+
+    /**
+     * 
+     */
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    
+    /**
+     * Test lookups of the pre-registered abbreviations.
+     */
+    @Test
+    public void testLookup() {
+        assertEquals(Constants.ISS, LabelRegistry.getLabel("iss"));
+        assertEquals(Constants.RS_CNF, LabelRegistry.getLabel("rs_cnf"));
+        assertEquals(LabelRegistry.UNKNOWN, LabelRegistry.getLabel("foo"));
+        assertEquals("exp", LabelRegistry.getName(Constants.EXP));
+        assertNull(LabelRegistry.getName(0));
+        assertNull(LabelRegistry.getName(-4));
+        assertEquals(Constants.GT_CLI_CRED, 
+                LabelRegistry.getGrantTypeLabel("client_credentials"));
+        assertEquals("invalid_scope", 
+                LabelRegistry.getErrorCode(Constants.INVALID_SCOPE));
+    }
+    
+    /**
+     * Test abbreviating and unabbreviating a parameter map.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, CBORObject> params = new HashMap<>();
+        params.put("grant_type", CBORObject.FromObject("client_credentials"));
+        params.put("error", CBORObject.FromObject("invalid_grant"));
+        params.put("aud", CBORObject.FromObject("rs1"));
+        params.put("private", CBORObject.FromObject(42));
+        CBORObject map = Constants.abbreviate(params);
+        assertEquals(CBORObject.FromObject(Constants.GT_CLI_CRED), 
+                map.get(CBORObject.FromObject(Constants.GRANT_TYPE)));
+        assertEquals(CBORObject.FromObject(Constants.INVALID_GRANT), 
+                map.get(CBORObject.FromObject(Constants.ERROR)));
+        assertEquals(params, Constants.unabbreviate(map));
+    }
+    
+    /**
+     * Test registering an application specific claim.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRegister() throws Exception {
+        //The registry is process-wide, use a name no other test uses
+        LabelRegistry.register("labelRegistryTest", 65000);
+        LabelRegistry.register("labelRegistryTest", 65000);
+        Map<String, CBORObject> params = new HashMap<>();
+        params.put("labelRegistryTest", CBORObject.FromObject(1));
+        CBORObject map = Constants.abbreviate(params);
+        assert(map.ContainsKey(CBORObject.FromObject(65000)));
+        assertEquals(params, Constants.unabbreviate(map));
+        
+        this.thrown.expect(AceException.class);
+        this.thrown.expectMessage("Label 65000 already registered");
+        LabelRegistry.register("labelRegistryTest2", 65000);
+    }
+}
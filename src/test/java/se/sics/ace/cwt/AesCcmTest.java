@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.CCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.Test;
+
+/**
+ * Known-answer tests of the AES-CCM implementation
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class AesCcmTest {
+    
+    private static byte[] hex(String s) {
+        byte[] ret = new byte[s.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte)Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return ret;
+    }
+    
+    /**
+     * Checks encryption and decryption against a known answer, and that a 
+     * modified ciphertext or tag is rejected.
+     */
+    private static void check(String key, String nonce, String aad, 
+            String plaintext, int macSize, String expected) throws Exception {
+        byte[] n = hex(nonce);
+        byte[] a = hex(aad);
+        byte[] p = hex(plaintext);
+        byte[] c = hex(expected);
+        AesCcm ccm = new AesCcm(hex(key), macSize);
+        assertArrayEquals(c, ccm.encrypt(n, a, p));
+        assertArrayEquals(p, ccm.decrypt(n, a, c, 0, c.length));
+        
+        //The same instance is reused for all messages
+        byte[] buf = new byte[c.length + 3];
+        System.arraycopy(c, 0, buf, 3, c.length);
+        assertArrayEquals(p, ccm.decrypt(n, a, buf, 3, c.length));
+        
+        for (int i = 0; i < c.length; i++) {
+            byte[] bad = c.clone();
+            bad[i] ^= 0x01;
+            try {
+                ccm.decrypt(n, a, bad, 0, bad.length);
+                fail("Modified ciphertext was accepted");
+            } catch (InvalidCipherTextException e) {
+                //Expected
+            }
+        }
+    }
+    
+    /**
+     * RFC 3610 packet vectors #1, #2 (13 byte nonce, 8 byte tag) and #7 
+     * (13 byte nonce, 10 byte tag).
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRfc3610() throws Exception {
+        String key = "c0c1c2c3c4c5c6c7c8c9cacbcccdcecf";
+        check(key, "00000003020100a0a1a2a3a4a5", "0001020304050607",
+                "08090a0b0c0d0e0f101112131415161718191a1b1c1d1e", 8,
+                "588c979a61c663d2f066d0c2c0f989806d5f6b61dac384"
+                + "17e8d12cfdf926e0");
+        check(key, "00000004030201a0a1a2a3a4a5", "0001020304050607",
+                "08090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f", 8,
+                "72c91a36e135f8cf291ca894085c87e3cc15c439c9e43a3b"
+                + "a091d56e10400916");
+        check(key, "00000009080706a0a1a2a3a4a5", "0001020304050607",
+                "08090a0b0c0d0e0f101112131415161718191a1b1c1d1e", 10,
+                "0135d1b2c95f41d5d1d4fec185d166b8094e999dfed96c"
+                + "048c56602c97acbb7490");
+    }
+    
+    /**
+     * NIST SP 800-38C examples 1 to 3 (7, 8 and 12 byte nonces, 4, 6 and 
+     * 8 byte tags), example 2 has a plaintext of exactly one block.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSp800_38C() throws Exception {
+        String key = "404142434445464748494a4b4c4d4e4f";
+        check(key, "10111213141516", "0001020304050607", "20212223", 4,
+                "7162015b4dac255d");
+        check(key, "1011121314151617", "000102030405060708090a0b0c0d0e0f",
+                "202122232425262728292a2b2c2d2e2f", 6,
+                "d2a1f0e051ea5f62081a7792073d593d1fc64fbfaccd");
+        check(key, "101112131415161718191a1b", 
+                "000102030405060708090a0b0c0d0e0f10111213",
+                "202122232425262728292a2b2c2d2e2f3031323334353637", 8,
+                "e3b201a9f5b71a7a9b1ceaeccd97e70b6176aad9a4428aa5"
+                + "484392fbc1b09951");
+    }
+    
+    /**
+     * The parameters of the COSE AES-CCM algorithms (7 and 13 byte nonces,
+     * 8 and 16 byte tags, 128 and 256 bit keys) against BouncyCastle, with
+     * empty plaintexts and plaintexts around the block boundaries.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCoseParameters() throws Exception {
+        Random random = new Random(8152);
+        int[] lengths = {0, 1, 15, 16, 17, 31, 32, 33, 256};
+        for (int keySize : new int[] {16, 32}) {
+            for (int nonceSize : new int[] {7, 13}) {
+                for (int macSize : new int[] {8, 16}) {
+                    for (int aadSize : new int[] {0, 13, 16}) {
+                        for (int length : lengths) {
+                            byte[] key = new byte[keySize];
+                            byte[] nonce = new byte[nonceSize];
+                            byte[] aad = new byte[aadSize];
+                            byte[] plaintext = new byte[length];
+                            random.nextBytes(key);
+                            random.nextBytes(nonce);
+                            random.nextBytes(aad);
+                            random.nextBytes(plaintext);
+                            
+                            CCMBlockCipher bc 
+                                = new CCMBlockCipher(new AESEngine());
+                            bc.init(true, new AEADParameters(
+                                    new KeyParameter(key), macSize * 8, 
+                                    nonce, aad));
+                            byte[] expected 
+                                = new byte[bc.getOutputSize(length)];
+                            int n = bc.processBytes(plaintext, 0, length, 
+                                    expected, 0);
+                            bc.doFinal(expected, n);
+                            
+                            AesCcm ccm = new AesCcm(key, macSize);
+                            assertArrayEquals(expected, 
+                                    ccm.encrypt(nonce, aad, plaintext));
+                            assertArrayEquals(plaintext, ccm.decrypt(
+                                    nonce, aad, expected, 0, 
+                                    expected.length));
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Test that a ciphertext shorter than the tag is rejected.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testTooShort() throws Exception {
+        AesCcm ccm = new AesCcm(new byte[16], 8);
+        try {
+            ccm.decrypt(new byte[13], new byte[0], new byte[7], 0, 7);
+            fail("Short ciphertext was accepted");
+        } catch (InvalidCipherTextException e) {
+            //Expected
+        }
+        assertArrayEquals(new byte[0], ccm.decrypt(new byte[13], new byte[0],
+                ccm.encrypt(new byte[13], new byte[0], new byte[0]), 0, 8));
+    }
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.OneKey;
+
+/**
+ * Tests of batch verification and issuance
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class CwtBatchTest {
+
+    /**
+     * Test that a mixed batch is verified and returned in input order.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testMixedBatch() throws Exception {
+        CwtCryptoCtx mac0 = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+        OneKey privateKey = OneKey.generateKey(AlgorithmID.ECDSA_256);
+        CwtCryptoCtx sign1 = CwtCryptoCtx.sign1Create(privateKey, 
+                AlgorithmID.ECDSA_256.AsCBOR());
+        CwtCryptoCtx verify1 = CwtCryptoCtx.sign1Verify(
+                privateKey.PublicKey(), AlgorithmID.ECDSA_256.AsCBOR());
+        
+        List<byte[]> tokens = new ArrayList<>();
+        List<CwtCryptoCtx> ctxs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Map<String, CBORObject> claims = new HashMap<>();
+            claims.put("exp", CBORObject.FromObject(i));
+            if (i % 3 == 0) {
+                tokens.add(new CWT(claims).encode(sign1).EncodeToBytes());
+                ctxs.add(verify1);
+            } else {
+                tokens.add(new CWT(claims).encode(mac0).EncodeToBytes());
+                ctxs.add(mac0);
+            }
+        }
+        byte[] broken = tokens.get(7).clone();
+        broken[broken.length - 1] ^= 1;
+        tokens.set(7, broken);
+        tokens.set(8, new byte[] {0x01});
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<CwtBatch.Result> results = new CwtBatch(pool, 2).processCOSE(
+                tokens, ctxs);
+        pool.shutdown();
+        assertEquals(tokens.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            CwtBatch.Result r = results.get(i);
+            if (i == 7 || i == 8) {
+                assertFalse(r.isVerified());
+                assertTrue(r.getFailure() != null);
+            } else {
+                assertTrue(r.isVerified());
+                assertEquals(i, r.getToken().getClaim("exp").AsInt32());
+            }
+        }
+    }
+    
+    /**
+     * Test that an issued batch verifies and is returned in input order.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testIssue() throws Exception {
+        CwtCryptoCtx mac0 = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+        List<Map<String, CBORObject>> claimSets = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Map<String, CBORObject> claims = new HashMap<>();
+            claims.put("exp", CBORObject.FromObject(i));
+            claims.put("iss", CBORObject.FromObject("issuer" + i));
+            claimSets.add(claims);
+        }
+        
+        ForkJoinPool pool = new ForkJoinPool(4);
+        CwtBatch.Issuance issued = new CwtBatch(pool, 2).issue(
+                claimSets, mac0);
+        pool.shutdown();
+        assertFalse(mac0.isPrepared());
+        assertEquals(0, issued.getFailureCount());
+        assertTrue(issued.getElapsedNanos() > 0);
+        assertTrue(issued.getTokensPerSecond() > 0);
+        List<CBORObject> tokens = issued.getTokens();
+        assertEquals(claimSets.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            CWT cwt = CWT.processCOSE(tokens.get(i).EncodeToBytes(), mac0);
+            assertEquals(i, cwt.getClaim("exp").AsInt32());
+            assertEquals("issuer" + i, cwt.getClaim("iss").AsString());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.MessageTag;
+import se.sics.ace.AceException;
+
+/**
+ * Tests of the histogram metrics
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class CwtHistogramMetricsTest {
+
+    /**
+     * Stop collecting metrics after each test.
+     */
+    @After
+    public void tearDown() {
+        CWT.setMetrics(null);
+    }
+    
+    /**
+     * Test the histogram buckets and percentiles.
+     */
+    @Test
+    public void testHistogram() {
+        CwtHistogramMetrics.Histogram h = new CwtHistogramMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i);
+        }
+        assertEquals(100, h.getCount());
+        assertEquals(100, h.getMax());
+        assertEquals(50.5, h.getMean(), 0.001);
+        //50 is in the bucket [32, 64)
+        assertEquals(63, h.getValueAtPercentile(50));
+        assertEquals(100, h.getValueAtPercentile(100));
+        assertEquals(1, h.getBuckets()[1]);
+        assertEquals(32, h.getBuckets()[6]);
+    }
+    
+    /**
+     * Test that processing and encoding report to the registered listener.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCollect() throws Exception {
+        CwtHistogramMetrics metrics = new CwtHistogramMetrics();
+        CWT.setMetrics(metrics);
+        CwtCryptoCtx ctx = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("iss", CBORObject.FromObject("coap://as.example.com"));
+        byte[] token = new CWT(claims).encode(ctx).EncodeToBytes();
+        for (int i = 0; i < 3; i++) {
+            CWT.processCOSE(token, ctx);
+        }
+        byte[] broken = token.clone();
+        broken[broken.length - 1] ^= 1;
+        try {
+            CWT.processCOSE(broken, ctx);
+            assert(false);
+        } catch (AceException e) {
+            //Expected
+        }
+        
+        assertEquals(1, metrics.getEncoded(MessageTag.MAC0, true));
+        assertEquals(3, metrics.getProcessed(MessageTag.MAC0, true));
+        assertEquals(1, metrics.getProcessed(MessageTag.MAC0, false));
+        assertEquals(4, metrics.getStage(CwtMetrics.Stage.DECODE, 
+                MessageTag.MAC0).getCount());
+        assertEquals(3, metrics.getStage(CwtMetrics.Stage.VERIFY, 
+                MessageTag.MAC0).getCount());
+        assertEquals(3, metrics.getStage(CwtMetrics.Stage.CLAIMS, 
+                MessageTag.MAC0).getCount());
+        assertEquals(1, metrics.getStage(CwtMetrics.Stage.PROTECT, 
+                MessageTag.MAC0).getCount());
+        assertEquals(4, metrics.getPayloadSizes(MessageTag.MAC0).getCount());
+        assertTrue(metrics.toString().startsWith("MAC0: processed 3 ok"));
+        
+        CWT.setMetrics(null);
+        CWT.processCOSE(token, ctx);
+        assertEquals(3, metrics.getProcessed(MessageTag.MAC0, true));
+    }
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.Attribute;
+import COSE.HeaderKeys;
+import COSE.KeyKeys;
+import COSE.OneKey;
+import COSE.Recipient;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+/**
+ * Tests of the limits on processed tokens
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class CwtLimitsTest {
+
+    private static Map<String, CBORObject> claims(int count) {
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("iss", CBORObject.FromObject("coap://as.example.com"));
+        for (int i = 1; i < count; i++) {
+            claims.put("claim" + i, CBORObject.FromObject(i));
+        }
+        return claims;
+    }
+    
+    private static void expectReject(byte[] token, CwtCryptoCtx ctx, 
+            String message) throws Exception {
+        try {
+            CWT.processCOSE(token, ctx);
+            fail("Token was accepted");
+        } catch (AceException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+    
+    /**
+     * Test the limits on token size, claims and nesting.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSizeAndClaims() throws Exception {
+        CwtCryptoCtx ctx = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256.AsCBOR());
+        byte[] token = new CWT(claims(10)).encode(ctx).EncodeToBytes();
+        CWT.processCOSE(token, ctx);
+        
+        ctx.setLimits(CwtLimits.DEFAULT.withMaxTokenSize(token.length - 1));
+        expectReject(token, ctx, "Token exceeds maximum size");
+        
+        ctx.setLimits(CwtLimits.DEFAULT.withMaxClaims(9));
+        expectReject(token, ctx, "Too many claims");
+        ctx.setLimits(CwtLimits.DEFAULT.withMaxClaims(10));
+        CWT.processCOSE(token, ctx);
+        
+        Map<String, CBORObject> deep = claims(1);
+        CBORObject nested = CBORObject.FromObject(1);
+        for (int i = 0; i < 5; i++) {
+            nested = CBORObject.NewArray().Add(nested);
+        }
+        deep.put("deep", nested);
+        token = new CWT(deep).encode(ctx).EncodeToBytes();
+        ctx.setLimits(CwtLimits.DEFAULT.withMaxDepth(6));
+        expectReject(token, ctx, "CBOR nesting too deep");
+        ctx.setLimits(CwtLimits.DEFAULT.withMaxDepth(7));
+        CWT.processCOSE(token, ctx);
+        
+        try {
+            CWT.parseClaims(CWT.processCOSE(token, ctx).encode(), 
+                    CwtLimits.DEFAULT.withMaxDepth(6));
+            fail("Claims were accepted");
+        } catch (AceException e) {
+            assertEquals("CBOR nesting too deep", e.getMessage());
+        }
+        try {
+            CWT.parseClaims(Constants.abbreviate(claims(20)), 
+                    CwtLimits.DEFAULT.withMaxClaims(19));
+            fail("Claims were accepted");
+        } catch (AceException e) {
+            assertEquals("Too many claims", e.getMessage());
+        }
+    }
+    
+    /**
+     * Test the algorithm allow-list, including prepared contexts.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testAllowedAlgorithms() throws Exception {
+        for (boolean prepare : new boolean[] {false, true}) {
+            CwtCryptoCtx ctx = CwtCryptoCtx.mac0(CwtTest.key256, 
+                    AlgorithmID.HMAC_SHA_256.AsCBOR());
+            if (prepare) {
+                ctx.prepare();
+            }
+            byte[] token = new CWT(claims(2)).encode(ctx).EncodeToBytes();
+            ctx.setLimits(CwtLimits.DEFAULT.withAllowedAlgorithms(
+                    AlgorithmID.HMAC_SHA_512));
+            expectReject(token, ctx, "Algorithm not allowed");
+            ctx.setLimits(CwtLimits.DEFAULT.withAllowedAlgorithms(
+                    AlgorithmID.HMAC_SHA_512, AlgorithmID.HMAC_SHA_256));
+            CWT.processCOSE(token, ctx);
+        }
+    }
+    
+    /**
+     * Test the limit on recipients, checked before any MAC is computed.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRecipients() throws Exception {
+        Recipient me = new Recipient();  
+        me.addAttribute(HeaderKeys.Algorithm, 
+                AlgorithmID.Direct.AsCBOR(), Attribute.UNPROTECTED);
+        CBORObject ckey = CBORObject.NewMap();
+        ckey.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
+        ckey.Add(KeyKeys.Octet_K.AsCBOR(), 
+                CBORObject.FromObject(CwtTest.key256));
+        me.SetKey(new OneKey(ckey)); 
+        CwtCryptoCtx ctx = CwtCryptoCtx.mac(Collections.singletonList(me), 
+                AlgorithmID.HMAC_SHA_256.AsCBOR());
+        CBORObject msg = new CWT(claims(2)).encode(ctx);
+        CBORObject recipients = msg.get(4);
+        for (int i = 0; i < 3; i++) {
+            recipients.Add(recipients.get(0));
+        }
+        byte[] token = msg.EncodeToBytes();
+        CWT.processCOSE(token, ctx);
+        ctx.setLimits(CwtLimits.DEFAULT.withMaxRecipients(3));
+        expectReject(token, ctx, "Too many recipients or signers");
+    }
+}
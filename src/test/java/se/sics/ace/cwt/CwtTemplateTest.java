@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+/**
+ * Tests of template based issuance
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class CwtTemplateTest {
+
+    private static Map<String, CBORObject> staticClaims() {
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("iss", CBORObject.FromObject("coap://as.example.com"));
+        claims.put("aud", CBORObject.FromObject("coap://light.example.com"));
+        claims.put("scope", CBORObject.FromObject("r_temp w_light"));
+        claims.put("custom", CBORObject.FromObject(42));
+        return claims;
+    }
+    
+    /**
+     * Test that the payload matches the library encoding of the same claims.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testPayload() throws Exception {
+        CwtTemplate template = new CwtTemplate(staticClaims());
+        byte[] cti = {0x0b, 0x71};
+        long[][] times = {{1444064944L, 1443944944L, 1443944944L}, 
+            {-5, 0, 23}, {24, 255, 65536}, 
+            {CwtTemplate.ABSENT, 4294967296L, CwtTemplate.ABSENT}};
+        for (long[] t : times) {
+            Map<String, CBORObject> claims = staticClaims();
+            if (t[0] != CwtTemplate.ABSENT) {
+                claims.put("exp", CBORObject.FromObject(t[0]));
+            }
+            claims.put("nbf", CBORObject.FromObject(t[1]));
+            if (t[2] != CwtTemplate.ABSENT) {
+                claims.put("iat", CBORObject.FromObject(t[2]));
+            }
+            claims.put("cti", CBORObject.FromObject(cti));
+            byte[] payload = template.payload(t[0], t[1], t[2], cti);
+            assertEquals(Constants.abbreviate(claims), 
+                    CBORObject.DecodeFromBytes(payload));
+        }
+        assertEquals(Constants.abbreviate(staticClaims()), 
+                CBORObject.DecodeFromBytes(template.payload(
+                        CwtTemplate.ABSENT, CwtTemplate.ABSENT, 
+                        CwtTemplate.ABSENT, null)));
+    }
+    
+    /**
+     * Test issuing tokens with plain and prepared contexts.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testEncode() throws Exception {
+        CwtTemplate template = new CwtTemplate(staticClaims());
+        CwtCryptoCtx plain = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256.AsCBOR());
+        CwtCryptoCtx prepared = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256.AsCBOR()).prepare();
+        byte[] cti = {1, 2, 3};
+        for (CwtCryptoCtx ctx : new CwtCryptoCtx[] {plain, prepared}) {
+            CBORObject token = template.encode(ctx, 2000L, 1000L, 1000L, cti);
+            CWT cwt = CWT.processCOSE(token.EncodeToBytes(), plain);
+            assertEquals(2000L, cwt.getClaim("exp").AsInt64());
+            assertEquals(1000L, cwt.getClaim("nbf").AsInt64());
+            assertArrayEquals(cti, cwt.getCtiBytes());
+            assertEquals("r_temp w_light", cwt.getClaim("scope").AsString());
+            assertTrue(cwt.isValid(1500L));
+            assertFalse(cwt.isValid(2500L));
+        }
+    }
+    
+    /**
+     * Test that a template cannot carry a per token claim.
+     * 
+     * @throws Exception
+     */
+    @Test (expected=AceException.class)
+    public void testDynamicClaim() throws Exception {
+        Map<String, CBORObject> claims = staticClaims();
+        claims.put("exp", CBORObject.FromObject(1000));
+        new CwtTemplate(claims);
+    }
+}
@@ -31,10 +31,22 @@
  *******************************************************************************/
 package se.sics.ace.cwt;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
@@ -48,8 +60,11 @@ import COSE.CoseException;
 import COSE.OneKey;
 import COSE.HeaderKeys;
 import COSE.KeyKeys;
+import COSE.MessageTag;
 import COSE.Recipient;
 import COSE.Signer;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
 
 /**
  * Tests of CWT code
@@ -126,6 +141,14 @@ public class CwtTest {
         for (String key : claims.keySet()) {
         	assert(cwt2.getClaimKeys().contains(key));
         }
+        
+        rawCWT[rawCWT.length - 1] ^= 1;
+        try {
+            CWT.processCOSE(rawCWT, ctx);
+            assert(false);
+        } catch (AceException e) {
+            //Expected
+        }
     }
     
     /**
@@ -248,6 +271,549 @@ public class CwtTest {
              }
          }
 
+         /**
+          * Test of MACed CWT where the verifying context has several 
+          * recipients identified by kid.
+          * @throws Exception 
+          */ @Test
+         public void testMACRecipientByKid() throws Exception {
+             System.out.println("MAC recipient by kid");
+             List<Recipient> recipients = new ArrayList<>();
+             for (int i = 0; i < 3; i++) {
+                 byte[] key = key256.clone();
+                 key[0] = (byte)i;
+                 recipients.add(makeRecipient(key, new byte[]{'k', (byte)i}));
+             }
+             CwtCryptoCtx ctx = CwtCryptoCtx.mac(
+                     Collections.singletonList(recipients.get(2)), 
+                     AlgorithmID.HMAC_SHA_256.AsCBOR());
+             CBORObject msg = new CWT(claims).encode(ctx);
+             
+             CwtCryptoCtx ctx2 = CwtCryptoCtx.mac(recipients, 
+                     AlgorithmID.HMAC_SHA_256.AsCBOR());
+             CWT cwt2 = CWT.processCOSE(msg.EncodeToBytes(), ctx2);
+             for (String key : claims.keySet()) {
+                 assert(cwt2.getClaimKeys().contains(key));
+             }
+             
+             CwtCryptoCtx ctx3 = CwtCryptoCtx.mac(recipients.subList(0, 2), 
+                     AlgorithmID.HMAC_SHA_256.AsCBOR());
+             this.thrown.expect(AceException.class);
+             this.thrown.expectMessage("No valid MAC found");
+             CWT.processCOSE(msg.EncodeToBytes(), ctx3);
+         }
+         
+         /**
+          * Test of the storage of registered and private claims.
+          * @throws Exception 
+          */ @Test
+         public void testClaimStorage() throws Exception {
+             System.out.println("Claim storage");
+             Map<String, CBORObject> myClaims = new HashMap<>(claims);
+             myClaims.put("foo", CBORObject.FromObject("bar"));
+             myClaims.put("rs_cnf", CBORObject.FromObject(new byte[] {1}));
+             myClaims.put("grant_type", 
+                     CBORObject.FromObject("client_credentials"));
+             CWT cwt = new CWT(myClaims);
+             assert(cwt.getClaimKeys().equals(myClaims.keySet()));
+             assert(cwt.getClaims().equals(myClaims));
+             for (Map.Entry<String, CBORObject> e : myClaims.entrySet()) {
+                 assert(cwt.getClaim(e.getKey()).equals(e.getValue()));
+             }
+             assert(cwt.getClaim("client_id") == null);
+             assert(cwt.getClaim("bar") == null);
+             assert(cwt.encode().equals(Constants.abbreviate(myClaims)));
+             
+             CwtCryptoCtx ctx = CwtCryptoCtx.mac0(key256, 
+                     AlgorithmID.HMAC_SHA_256.AsCBOR());
+             CWT cwt2 = CWT.processCOSE(
+                     cwt.encode(ctx).EncodeToBytes(), ctx);
+             assert(cwt2.getClaimKeys().equals(myClaims.keySet()));
+             assert(cwt2.getClaim("foo").equals(myClaims.get("foo")));
+             assert(cwt2.getClaim("rs_cnf").equals(myClaims.get("rs_cnf")));
+             //Values stay abbreviated when the CWT is processed
+             assert(cwt2.getClaim("grant_type").AsInt32() 
+                     == Constants.GT_CLI_CRED);
+         }
+         
+         /**
+          * Test of building a CWT and of the read-only views of its claims.
+          * @throws Exception 
+          */ @Test
+         public void testBuilder() throws Exception {
+             System.out.println("Builder");
+             CWT.Builder builder = CWT.builder().claims(claims)
+                     .claim("foo", CBORObject.FromObject("bar"))
+                     .claim("client_id", CBORObject.FromObject("me"))
+                     .claim("client_id", null);
+             CWT cwt = builder.build();
+             Map<String, CBORObject> myClaims = new HashMap<>(claims);
+             myClaims.put("foo", CBORObject.FromObject("bar"));
+             assert(cwt.getClaims().equals(myClaims));
+             assert(cwt.getClaims().size() == myClaims.size());
+             assert(cwt.getClaimKeys().equals(myClaims.keySet()));
+             assert(cwt.getClaim("client_id") == null);
+             assert(cwt.getExp() == 1444064944L);
+             assert(cwt.encode().equals(Constants.abbreviate(myClaims)));
+             try {
+                 cwt.getClaims().put("sub", CBORObject.FromObject("x"));
+                 assert(false);
+             } catch (UnsupportedOperationException e) {
+                 //Expected
+             }
+             try {
+                 cwt.getClaimKeys().remove("iss");
+                 assert(false);
+             } catch (UnsupportedOperationException e) {
+                 //Expected
+             }
+             try {
+                 builder.claim("sub", CBORObject.FromObject("x"));
+                 assert(false);
+             } catch (IllegalStateException e) {
+                 //Expected
+             }
+             
+             CwtCryptoCtx ctx = CwtCryptoCtx.mac0(key256, 
+                     AlgorithmID.HMAC_SHA_256.AsCBOR());
+             CWT cwt2 = CWT.processCOSE(
+                     cwt.encode(ctx).EncodeToBytes(), ctx);
+             assert(cwt2.getClaims().equals(myClaims));
+         }
+         
+         /**
+          * Test of Encrypted CWT where the verifying context has several 
+          * recipients without kid, the one that succeeded last is tried 
+          * first.
+          * @throws Exception 
+          */ @Test
+         public void testEncryptRecipientWithoutKid() throws Exception {
+             System.out.println("Encrypt recipient without kid");
+             List<Recipient> recipients = new ArrayList<>();
+             for (int i = 0; i < 3; i++) {
+                 byte[] key = key128.clone();
+                 key[0] = (byte)i;
+                 recipients.add(makeRecipient(key, null));
+             }
+             CBORObject alg = AlgorithmID.AES_CCM_16_64_128.AsCBOR();
+             byte[] msg = new CWT(claims).encode(CwtCryptoCtx.encrypt(
+                     Collections.singletonList(recipients.get(2)), alg))
+                     .EncodeToBytes();
+             
+             CwtCryptoCtx ctx = CwtCryptoCtx.encrypt(recipients, alg);
+             RecipientCandidates candidates = ctx.getRecipientKeys(
+                     null, AlgorithmID.Direct.AsCBOR());
+             assert(candidates.size() == 3);
+             assert(candidates.first() == 0);
+             CwtHistogramMetrics metrics = new CwtHistogramMetrics();
+             CWT.setMetrics(metrics);
+             try {
+                 for (int i = 0; i < 2; i++) {
+                     CWT cwt2 = CWT.processCOSE(msg, ctx);
+                     for (String key : claims.keySet()) {
+                         assert(cwt2.getClaimKeys().contains(key));
+                     }
+                     assert(candidates.first() == 2);
+                 }
+             } finally {
+                 CWT.setMetrics(null);
+             }
+             //All three keys for the first message, one for the second
+             CwtHistogramMetrics.Histogram attempts 
+                 = metrics.getRecipientAttempts(MessageTag.Encrypt);
+             assert(attempts.getCount() == 2);
+             assert(attempts.getMax() == 3);
+             assert(attempts.getMean() == 2.0);
+             
+             //The other candidates follow in context order
+             assert(RecipientCandidates.index(2, 0) == 2);
+             assert(RecipientCandidates.index(2, 1) == 0);
+             assert(RecipientCandidates.index(2, 2) == 1);
+             assert(RecipientCandidates.index(1, 0) == 1);
+             assert(RecipientCandidates.index(1, 1) == 0);
+             assert(RecipientCandidates.index(1, 2) == 2);
+         }
+         
+         private static Recipient makeRecipient(byte[] key, byte[] kid) 
+                 throws CoseException {
+             Recipient r = new Recipient();  
+             r.addAttribute(HeaderKeys.Algorithm, 
+                     AlgorithmID.Direct.AsCBOR(), Attribute.UNPROTECTED);
+             if (kid != null) {
+                 r.addAttribute(HeaderKeys.KID, 
+                         CBORObject.FromObject(kid), Attribute.UNPROTECTED);
+             }
+             CBORObject ckey = CBORObject.NewMap();
+             ckey.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
+             ckey.Add(KeyKeys.Octet_K.AsCBOR(), CBORObject.FromObject(key));
+             r.SetKey(new OneKey(ckey));
+             return r;
+         }
+
+         /**
+          * Test of claim lookup on a processed CWT and of decoding only
+          * selected claims.
+          * @throws Exception 
+          */ @Test
+         public void testProcessProjection() throws Exception {
+             System.out.println("Process with projection");
+             CwtCryptoCtx ctx = CwtCryptoCtx.mac0(key256, 
+                     AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+             Map<String, CBORObject> myClaims = new HashMap<>(claims);
+             myClaims.put("foo", CBORObject.FromObject("bar"));
+             byte[] rawCWT = new CWT(myClaims).encode(ctx).EncodeToBytes();
+             
+             CWT cwt = CWT.processCOSE(rawCWT, ctx);
+             for (String key : myClaims.keySet()) {
+                 assert(myClaims.get(key).equals(cwt.getClaim(key)));
+             }
+             assert(cwt.getClaim("client_id") == null);
+             assert(cwt.isValid(1444064928));
+             
+             Set<String> wanted = new HashSet<>();
+             wanted.add("exp");
+             wanted.add("aud");
+             wanted.add("foo");
+             wanted.add("client_id");
+             CWT cwt2 = CWT.processCOSE(rawCWT, ctx, wanted);
+             assert(cwt2.getClaimKeys().size() == 3);
+             assert(cwt2.getClaim("exp").equals(claims.get("exp")));
+             assert(cwt2.getClaim("aud").equals(claims.get("aud")));
+             assert(cwt2.getClaim("foo").AsString().equals("bar"));
+             assert(cwt2.getClaim("iss") == null);
+             
+             //The time checks see exp and nbf even if not requested
+             wanted.remove("exp");
+             CWT cwt3 = CWT.processCOSE(rawCWT, ctx, wanted);
+             assert(cwt3.getClaim("exp") == null);
+             assert(cwt3.getExp() == 1444064944);
+             assert(cwt3.getNbf() == 1443944944);
+             assert(cwt3.getIat() == 1443944944);
+             assert(cwt3.expired(1444064948));
+             assert(!cwt3.isValid(1444064948));
+             assert(!cwt3.isValid(1443944942));
+             assert(cwt3.isValid(1444064928));
+         }
+
+         /**
+          * Test of reading the time window and audience without decoding 
+          * the claims.
+          * @throws Exception 
+          */ @Test
+         public void testPrescan() throws Exception {
+             System.out.println("Prescan");
+             CwtCryptoCtx ctx = CwtCryptoCtx.mac0(key256, 
+                     AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+             byte[] rawCWT = new CWT(claims).encode(ctx).EncodeToBytes();
+             CwtPrescan scan = CWT.prescanCOSE(rawCWT, ctx);
+             assert(scan.getExp() == 1444064944);
+             assert(scan.getNbf() == 1443944944);
+             assert(scan.hasAudience("coap://light.example.com"));
+             assert(!scan.hasAudience("coap://light.example.co"));
+             assert(scan.getAudience().equals(claims.get("aud")));
+             assert(!scan.isValid(1443944942));
+             assert(scan.isValid(1444064928));
+             assert(scan.expired(1444064948));
+             
+             CBORObject map = CBORObject.NewMap();
+             map.Add("exp", CBORObject.FromObjectAndTag(1444064944.5, 1));
+             map.Add("foo", CBORObject.NewArray().Add(1).Add("exp"));
+             CBORObject aud = CBORObject.NewArray();
+             aud.Add("rs1").Add("rs2");
+             map.Add("aud", aud);
+             scan = CwtPrescan.scan(map.EncodeToBytes());
+             assert(scan.getExp() == 1444064944);
+             assert(scan.getNbf() == Long.MIN_VALUE);
+             assert(scan.hasAudience("rs2"));
+             assert(!scan.hasAudience("rs3"));
+             
+             this.thrown.expect(AceException.class);
+             this.thrown.expectMessage("This is not a CWT");
+             CwtPrescan.scan(aud.EncodeToBytes());
+         }
+
+         /**
+          * Test that lengths that do not fit a long are rejected instead of
+          * being read as empty items.
+          * @throws Exception 
+          */ @Test
+         public void testPrescanHugeLength() throws Exception {
+             System.out.println("Prescan huge length");
+             byte[] huge = {(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 
+                     (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff};
+             byte[][] inputs = {
+                     //{"foo": h'' with a length of 2^64 - 1}
+                     concat(new byte[] {(byte)0xa1, 0x63, 'f', 'o', 'o', 0x5b},
+                             huge),
+                     //{"foo": [] with 2^64 - 1 elements}
+                     concat(new byte[] {(byte)0xa1, 0x63, 'f', 'o', 'o', 
+                             (byte)0x9b}, huge),
+                     //A map with 2^64 - 1 entries
+                     concat(new byte[] {(byte)0xbb}, huge)};
+             for (byte[] input : inputs) {
+                 try {
+                     CwtPrescan.scan(input);
+                     assert(false);
+                 } catch (AceException e) {
+                     assert(e.getMessage().startsWith("Malformed CBOR"));
+                 }
+             }
+         }
+         
+         private static byte[] concat(byte[] a, byte[] b) {
+             byte[] ret = Arrays.copyOf(a, a.length + b.length);
+             System.arraycopy(b, 0, ret, a.length, b.length);
+             return ret;
+         }
+
+         /**
+          * Test of the asynchronous encode and verify methods.
+          * @throws Exception 
+          */ @Test
+         public void testAsync() throws Exception {
+             System.out.println("Async round trip");
+             ExecutorService executor = CwtExecutors.newCryptoExecutor();
+             try {
+                 CwtCryptoCtx ctx = CwtCryptoCtx.sign1Create(privateKey, 
+                         AlgorithmID.ECDSA_256.AsCBOR());
+                 CwtCryptoCtx ctx2 = CwtCryptoCtx.sign1Verify(publicKey, 
+                         AlgorithmID.ECDSA_256.AsCBOR());
+                 byte[] rawCWT = new CWT(claims).encodeAsync(ctx, executor)
+                         .get().EncodeToBytes();
+                 CWT cwt2 = CWT.processCOSEAsync(rawCWT, ctx2, executor)
+                         .get();
+                 for (String key : claims.keySet()) {
+                     assert(cwt2.getClaimKeys().contains(key));
+                 }
+                 
+                 rawCWT[rawCWT.length - 1] ^= 1;
+                 try {
+                     CWT.processCOSEAsync(rawCWT, ctx2, executor).get();
+                     assert(false);
+                 } catch (ExecutionException e) {
+                     assert(e.getCause() instanceof AceException);
+                 }
+             } finally {
+                 executor.shutdown();
+             }
+         }
+
+         /**
+          * Test that prepared contexts interoperate with the COSE library
+          * for all supported MAC0 and Encrypt0 algorithms.
+          * @throws Exception 
+          */ @Test
+         public void testPrepared() throws Exception {
+             System.out.println("Prepared contexts");
+             AlgorithmID[] macs = {AlgorithmID.HMAC_SHA_256_64, 
+                     AlgorithmID.HMAC_SHA_256, AlgorithmID.HMAC_SHA_384,
+                     AlgorithmID.HMAC_SHA_512, AlgorithmID.AES_CBC_MAC_128_64,
+                     AlgorithmID.AES_CBC_MAC_256_128};
+             AlgorithmID[] ciphers = {AlgorithmID.AES_GCM_128, 
+                     AlgorithmID.AES_GCM_256, AlgorithmID.AES_CCM_16_64_128,
+                     AlgorithmID.AES_CCM_64_128_256};
+             for (AlgorithmID alg : macs) {
+                 byte[] key = new byte[alg.getKeySize() / 8];
+                 key[0] = (byte)alg.ordinal();
+                 checkPrepared(CwtCryptoCtx.mac0(key, alg.AsCBOR()), 
+                         CwtCryptoCtx.mac0(key, alg.AsCBOR()).prepare());
+             }
+             for (AlgorithmID alg : ciphers) {
+                 byte[] key = new byte[alg.getKeySize() / 8];
+                 key[0] = (byte)alg.ordinal();
+                 checkPrepared(CwtCryptoCtx.encrypt0(key, alg.AsCBOR()), 
+                         CwtCryptoCtx.encrypt0(key, alg.AsCBOR()).prepare());
+             }
+             assert(!CwtCryptoCtx.sign1Verify(publicKey, 
+                     AlgorithmID.ECDSA_256.AsCBOR()).prepare().isPrepared());
+         }
+         
+         private static void checkPrepared(CwtCryptoCtx plain, 
+                 CwtCryptoCtx prepared) throws Exception {
+             assert(prepared.isPrepared());
+             CWT cwt = new CWT(claims);
+             byte[] fromPlain = cwt.encode(plain).EncodeToBytes();
+             byte[] fromPrepared = cwt.encode(prepared).EncodeToBytes();
+             for (byte[] raw : new byte[][] {fromPlain, fromPrepared}) {
+                 for (CwtCryptoCtx ctx : new CwtCryptoCtx[] {plain, prepared}) {
+                     CWT cwt2 = CWT.processCOSE(raw, ctx);
+                     for (String key : claims.keySet()) {
+                         assert(claims.get(key).equals(cwt2.getClaim(key)));
+                     }
+                 }
+             }
+             fromPrepared[fromPrepared.length - 1] ^= 1;
+             for (CwtCryptoCtx ctx : new CwtCryptoCtx[] {plain, prepared}) {
+                 try {
+                     CWT.processCOSE(fromPrepared, ctx);
+                     assert(false);
+                 } catch (AceException | InvalidCipherTextException e) {
+                     //Expected
+                 }
+             }
+         }
+
+         /**
+          * Test of MAC0 and Encrypt0 contexts with a keyring.
+          * @throws Exception 
+          */ @Test
+         public void testKeyring() throws Exception {
+             System.out.println("Keyring");
+             Map<CBORObject, byte[]> keys = new HashMap<>();
+             for (int i = 0; i < 3; i++) {
+                 byte[] key = key128.clone();
+                 key[0] = (byte)i;
+                 keys.put(CBORObject.FromObject(new byte[]{'k', (byte)i}), key);
+             }
+             CBORObject kid1 = CBORObject.FromObject(new byte[]{'k', 1});
+             CBORObject unknown = CBORObject.FromObject(new byte[]{'k', 9});
+             AlgorithmID[] algs = {AlgorithmID.AES_CBC_MAC_128_64, 
+                     AlgorithmID.AES_CCM_16_64_128};
+             for (AlgorithmID alg : algs) {
+                 boolean mac = alg == AlgorithmID.AES_CBC_MAC_128_64;
+                 CwtCryptoCtx issuer = mac 
+                         ? CwtCryptoCtx.mac0(keys, kid1, alg.AsCBOR())
+                         : CwtCryptoCtx.encrypt0(keys, kid1, alg.AsCBOR());
+                 CwtCryptoCtx verifier = mac 
+                         ? CwtCryptoCtx.mac0(keys, null, alg.AsCBOR())
+                         : CwtCryptoCtx.encrypt0(keys, null, alg.AsCBOR());
+                 Map<CBORObject, byte[]> other = new HashMap<>();
+                 other.put(unknown, keys.get(kid1));
+                 CwtCryptoCtx stranger = mac 
+                         ? CwtCryptoCtx.mac0(other, unknown, alg.AsCBOR())
+                         : CwtCryptoCtx.encrypt0(other, unknown, alg.AsCBOR());
+                 for (boolean prepare : new boolean[] {false, true}) {
+                     if (prepare) {
+                         issuer.prepare();
+                         verifier.prepare();
+                         assert(verifier.isPrepared());
+                     }
+                     byte[] raw = new CWT(claims).encode(issuer)
+                             .EncodeToBytes();
+                     CWT cwt2 = CWT.processCOSE(raw, verifier);
+                     for (String key : claims.keySet()) {
+                         assert(claims.get(key).equals(cwt2.getClaim(key)));
+                     }
+                     try {
+                         new CWT(claims).encode(verifier);
+                         assert(false);
+                     } catch (AceException e) {
+                         assert(e.getMessage().equals(
+                                 "No key in crypto context"));
+                     }
+                     try {
+                         CWT.processCOSE(new CWT(claims).encode(stranger)
+                                 .EncodeToBytes(), verifier);
+                         assert(false);
+                     } catch (AceException e) {
+                         assert(e.getMessage().equals("No key for kid"));
+                     }
+                 }
+             }
+         }
+
+         /**
+          * Test of processing from buffer regions and encoding into buffers.
+          * @throws Exception 
+          */ @Test
+         public void testBuffers() throws Exception {
+             System.out.println("Buffers");
+             Map<CBORObject, byte[]> keys = new HashMap<>();
+             keys.put(CBORObject.FromObject(new byte[]{'k'}), key128);
+             CwtCryptoCtx[] ctxs = {
+                 CwtCryptoCtx.mac0(key256, 
+                         AlgorithmID.HMAC_SHA_256_64.AsCBOR()),
+                 CwtCryptoCtx.mac0(key256, 
+                         AlgorithmID.HMAC_SHA_256_64.AsCBOR()).prepare(),
+                 CwtCryptoCtx.mac0(keys, CBORObject.FromObject(
+                         new byte[]{'k'}), 
+                         AlgorithmID.AES_CBC_MAC_128_64.AsCBOR()).prepare(),
+                 CwtCryptoCtx.encrypt0(key128, 
+                         AlgorithmID.AES_CCM_16_64_128.AsCBOR()),
+                 CwtCryptoCtx.encrypt0(key128, 
+                         AlgorithmID.AES_GCM_128.AsCBOR()).prepare()};
+             CWT cwt = new CWT(claims);
+             for (int i = 0; i < ctxs.length; i++) {
+                 CwtCryptoCtx ctx = ctxs[i];
+                 for (ByteBuffer buf : new ByteBuffer[] {
+                         ByteBuffer.allocate(1024), 
+                         ByteBuffer.allocateDirect(1024)}) {
+                     ((Buffer)buf).position(7);
+                     int len = cwt.encode(ctx, buf);
+                     assert(buf.position() == 7 + len);
+                     if (i < 3) {
+                         byte[] expected = cwt.encode(ctx).EncodeToBytes();
+                         byte[] written = new byte[len];
+                         ByteBuffer view = buf.duplicate();
+                         ((Buffer)view).position(7);
+                         view.get(written);
+                         assert(Arrays.equals(expected, written));
+                     }
+                     ((Buffer)buf).limit(buf.position()).position(7);
+                     CWT cwt2 = CWT.processCOSE(buf, ctx);
+                     assert(!buf.hasRemaining());
+                     for (String key : claims.keySet()) {
+                         assert(claims.get(key).equals(cwt2.getClaim(key)));
+                     }
+                 }
+                 byte[] raw = cwt.encode(ctx).EncodeToBytes();
+                 byte[] padded = new byte[raw.length + 10];
+                 System.arraycopy(raw, 0, padded, 3, raw.length);
+                 CWT cwt3 = CWT.processCOSE(padded, 3, raw.length, ctx);
+                 assert(claims.get("iss").equals(cwt3.getClaim("iss")));
+                 
+                 //A direct buffer reuses the scratch array of this thread
+                 ByteBuffer direct = ByteBuffer.allocateDirect(raw.length);
+                 for (int j = 0; j < 2; j++) {
+                     ((Buffer)direct).clear();
+                     direct.put(raw);
+                     ((Buffer)direct).flip();
+                     CWT cwt4 = CWT.processCOSE(direct, ctx);
+                     assert(claims.get("iss").equals(cwt4.getClaim("iss")));
+                 }
+                 
+                 ByteBuffer small = ByteBuffer.allocate(raw.length - 1);
+                 try {
+                     cwt.encode(ctx, small);
+                     assert(false);
+                 } catch (BufferOverflowException e) {
+                     assert(small.position() == 0);
+                 }
+             }
+         }
+
+         /**
+          * Test of encoding straight to bytes and to a stream.
+          * @throws Exception 
+          */ @Test
+         public void testEncodeToBytes() throws Exception {
+             System.out.println("Encode to bytes");
+             CwtCryptoCtx[] ctxs = {
+                 CwtCryptoCtx.mac0(key256, 
+                         AlgorithmID.HMAC_SHA_256_64.AsCBOR()),
+                 CwtCryptoCtx.mac0(key256, 
+                         AlgorithmID.HMAC_SHA_256_64.AsCBOR()).prepare(),
+                 CwtCryptoCtx.encrypt0(key128, 
+                         AlgorithmID.AES_CCM_16_64_128.AsCBOR()).prepare()};
+             CWT cwt = new CWT(claims);
+             for (int i = 0; i < ctxs.length; i++) {
+                 byte[] raw = cwt.encodeToBytes(ctxs[i]);
+                 ByteArrayOutputStream out = new ByteArrayOutputStream();
+                 cwt.encodeTo(out, ctxs[i]);
+                 if (i < 2) {
+                     byte[] expected = cwt.encode(ctxs[i]).EncodeToBytes();
+                     assert(Arrays.equals(expected, raw));
+                     assert(Arrays.equals(expected, out.toByteArray()));
+                 }
+                 for (byte[] token : new byte[][] {raw, out.toByteArray()}) {
+                     CWT cwt2 = CWT.processCOSE(token, ctxs[i]);
+                     for (String key : claims.keySet()) {
+                         assert(claims.get(key).equals(cwt2.getClaim(key)));
+                     }
+                 }
+             }
+         }
+
          /**
           * Test of the isValid() method.
           * @throws Exception
@@ -263,6 +829,37 @@ public class CwtTest {
         	 assert(cwt.isValid(now));        	 
          }
 
+         /**
+          * Test of the time claims decoded at construction.
+          * @throws Exception
+          */ @Test
+         public void testTimeClaims() throws Exception {
+             System.out.println("Test time claims");
+             CWT cwt = new CWT(CwtTest.claims);
+             assert(cwt.getExp() == 1444064944L);
+             assert(cwt.getNbf() == 1443944944L);
+             assert(cwt.getIat() == 1443944944L);
+             
+             CwtCryptoCtx ctx = CwtCryptoCtx.mac0(key256, 
+                     AlgorithmID.HMAC_SHA_256.AsCBOR());
+             CWT cwt2 = CWT.processCOSE(
+                     cwt.encode(ctx).EncodeToBytes(), ctx);
+             assert(cwt2.getExp() == 1444064944L);
+             assert(cwt2.getNbf() == 1443944944L);
+             assert(cwt2.getIat() == 1443944944L);
+             
+             Map<String, CBORObject> noTimes = new HashMap<>(claims);
+             noTimes.remove("exp");
+             noTimes.remove("nbf");
+             noTimes.remove("iat");
+             CWT cwt3 = new CWT(noTimes);
+             assert(cwt3.getExp() == Long.MAX_VALUE);
+             assert(cwt3.getNbf() == Long.MIN_VALUE);
+             assert(cwt3.getIat() == Long.MIN_VALUE);
+             assert(cwt3.isValid(Long.MAX_VALUE));
+             assert(!cwt3.expired(Long.MAX_VALUE));
+         }
+
           /**
            * Test of the expired() method.
            * @throws Exception
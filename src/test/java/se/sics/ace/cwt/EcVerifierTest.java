@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.Attribute;
+import COSE.CoseException;
+import COSE.HeaderKeys;
+import COSE.KeyKeys;
+import COSE.OneKey;
+import COSE.Signer;
+import se.sics.ace.AceException;
+
+/**
+ * Tests of verification with prepared EC verifiers
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class EcVerifierTest {
+    
+    private static AlgorithmID[] algs = {AlgorithmID.ECDSA_256, 
+            AlgorithmID.ECDSA_384, AlgorithmID.ECDSA_512};
+    
+    private static Map<String, CBORObject> claims() {
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("iss", CBORObject.FromObject("coap://as.example.com"));
+        return claims;
+    }
+    
+    private static void assertRejected(byte[] token, CwtCryptoCtx ctx) 
+            throws Exception {
+        byte[] tampered = token.clone();
+        tampered[tampered.length - 1] ^= 0x01;
+        try {
+            CWT.processCOSE(tampered, ctx);
+            fail("Tampered token was accepted");
+        } catch (AceException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * Test that verifiers are only prepared for EC keys.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testCreate() throws Exception {
+        for (AlgorithmID alg : algs) {
+            assertNotNull(EcVerifier.create(
+                    OneKey.generateKey(alg).PublicKey()));
+        }
+        CBORObject octet = CBORObject.NewMap();
+        octet.Add(KeyKeys.KeyType.AsCBOR(), KeyKeys.KeyType_Octet);
+        octet.Add(KeyKeys.Octet_K.AsCBOR(), new byte[32]);
+        assertNull(EcVerifier.create(new OneKey(octet)));
+    }
+    
+    /**
+     * Test that a point that is not on the curve is rejected.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidPoint() throws Exception {
+        CBORObject key = OneKey.generateKey(AlgorithmID.ECDSA_256)
+                .PublicKey().AsCBOR();
+        byte[] y = key.get(KeyKeys.EC2_Y.AsCBOR()).GetByteString();
+        y[y.length - 1] ^= 0x01;
+        key.set(KeyKeys.EC2_Y.AsCBOR(), CBORObject.FromObject(y));
+        try {
+            new TrustStore().add(new OneKey(key));
+            fail("Invalid point was accepted");
+        } catch (CoseException e) {
+            //Expected
+        }
+    }
+    
+    /**
+     * Test Sign1 round trips on all curves.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSign1() throws Exception {
+        for (AlgorithmID alg : algs) {
+            OneKey key = OneKey.generateKey(alg);
+            CwtCryptoCtx verify = CwtCryptoCtx.sign1Verify(
+                    key.PublicKey(), alg.AsCBOR());
+            byte[] token = new CWT(claims()).encode(CwtCryptoCtx.sign1Create(
+                    key, alg.AsCBOR())).EncodeToBytes();
+            for (int i = 0; i < 2; i++) {
+                CWT cwt = CWT.processCOSE(token, verify);
+                assertEquals("coap://as.example.com", 
+                        cwt.getClaim("iss").AsString());
+            }
+            assertNotNull(verify.getVerifier());
+            assertRejected(token, verify);
+        }
+    }
+    
+    /**
+     * Test Sign round trips on all curves, with the verified signer 
+     * after an unknown one.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSign() throws Exception {
+        for (AlgorithmID alg : algs) {
+            OneKey unknown = OneKey.generateKey(alg);
+            OneKey known = OneKey.generateKey(alg);
+            CBORObject kid = CBORObject.FromObject(new byte[] {'k'});
+            Signer first = new Signer();
+            first.setKey(unknown);
+            first.addAttribute(HeaderKeys.Algorithm, alg.AsCBOR(), 
+                    Attribute.PROTECTED);
+            first.addAttribute(HeaderKeys.KID, 
+                    CBORObject.FromObject(new byte[] {'u'}), 
+                    Attribute.UNPROTECTED);
+            Signer second = new Signer();
+            second.setKey(known);
+            second.addAttribute(HeaderKeys.Algorithm, alg.AsCBOR(), 
+                    Attribute.PROTECTED);
+            second.addAttribute(HeaderKeys.KID, kid, Attribute.UNPROTECTED);
+            byte[] token = new CWT(claims()).encode(CwtCryptoCtx.signCreate(
+                    Arrays.asList(first, second), alg.AsCBOR()))
+                    .EncodeToBytes();
+            
+            TrustStore store = new TrustStore();
+            store.add(kid, known.PublicKey());
+            for (CwtCryptoCtx verify : Arrays.asList(
+                    CwtCryptoCtx.signVerify(store, alg.AsCBOR()),
+                    CwtCryptoCtx.signVerify(known.PublicKey(), 
+                            alg.AsCBOR()))) {
+                CWT cwt = CWT.processCOSE(token, verify);
+                assertEquals("coap://as.example.com", 
+                        cwt.getClaim("iss").AsString());
+                assertRejected(token, verify);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+/**
+ * Tests of the cti replay store
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class ReplayStoreTest {
+
+    /**
+     * Test that a cti is rejected until its token expires.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testReplay() throws Exception {
+        ReplayStore store = new ReplayStore(10, 100);
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("cti", CBORObject.FromObject(new byte[] {0x0B, 0x71}));
+        claims.put("exp", CBORObject.FromObject(1050));
+        CWT cwt = new CWT(claims);
+        
+        assertTrue(store.checkAndInsert(cwt, 1000));
+        assertFalse(store.checkAndInsert(cwt, 1001));
+        assertFalse(store.checkAndInsert(
+                new byte[] {0x0B, 0x71}, 1100, 1002));
+        assertTrue(store.checkAndInsert(new byte[] {0x0B, 0x72}, 1100, 1002));
+        assertEquals(2, store.size());
+        
+        //Expired tokens are not accepted, buckets are purged as time passes
+        assertFalse(store.checkAndInsert(new byte[] {0x01}, 1050, 1051));
+        assertFalse(store.checkAndInsert(cwt, 1061));
+        assertEquals(1, store.size());
+        assertEquals("C3E=", cwt.getCti());
+    }
+    
+    /**
+     * Test that exactly one of several concurrent inserts of the same cti
+     * succeeds.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        final ReplayStore store = new ReplayStore(10, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int inserted = 0;
+                    for (int i = 0; i < 1000; i++) {
+                        if (store.checkAndInsert(new byte[] {(byte)(i >> 8), 
+                                (byte)i}, 2000 + i, 1000)) {
+                            inserted++;
+                        }
+                    }
+                    return inserted;
+                }
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> f : results) {
+            total += f.get();
+        }
+        executor.shutdown();
+        assertEquals(1000, total);
+        assertEquals(1000, store.size());
+    }
+}
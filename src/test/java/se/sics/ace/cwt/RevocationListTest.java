@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.upokecenter.cbor.CBORObject;
+
+import se.sics.ace.AceException;
+
+/**
+ * Tests of the revocation list
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class RevocationListTest {
+
+    /**
+     * 
+     */
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    
+    /**
+     * Test revocation, growing of the filter and pruning.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testRevoke() throws Exception {
+        RevocationList list = new RevocationList(4, 0);
+        for (int i = 0; i < 100; i++) {
+            list.revoke(new byte[] {(byte)i, 1}, 1000 + i);
+        }
+        assertEquals(100, list.size());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(list.isRevoked(new byte[] {(byte)i, 1}, 1000));
+            assertFalse(list.isRevoked(new byte[] {(byte)i, 2}, 1000));
+        }
+        
+        //Lookups after the first exp trigger pruning
+        assertTrue(list.isRevoked(new byte[] {60, 1}, 1050));
+        assertEquals(50, list.size());
+        assertFalse(list.isRevoked(new byte[] {10, 1}, 1050));
+        
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("cti", CBORObject.FromObject(new byte[] {99, 1}));
+        claims.put("exp", CBORObject.FromObject(1099));
+        CWT cwt = new CWT(claims);
+        this.thrown.expect(AceException.class);
+        this.thrown.expectMessage("Token has been revoked");
+        list.check(cwt, 1050);
+    }
+}
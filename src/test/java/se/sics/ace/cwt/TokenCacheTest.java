@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import se.sics.ace.AceException;
+
+/**
+ * Tests of the verified token cache
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class TokenCacheTest {
+
+    static CwtCryptoCtx ctx;
+    
+    static byte[] token;
+    
+    /**
+     * Set up tests.
+     * @throws Exception 
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        ctx = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("iss", CBORObject.FromObject("coap://as.example.com"));
+        claims.put("exp", CBORObject.FromObject(1444064944));
+        token = new CWT(claims).encode(ctx).EncodeToBytes();
+    }
+    
+    /**
+     * Test that a verified token is returned from the cache until it 
+     * expires.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testHitUntilExpired() throws Exception {
+        TokenCache cache = new TokenCache(10, 10);
+        CWT cwt = cache.processCOSE(token, ctx, 1444064900);
+        assertSame(cwt, cache.processCOSE(token.clone(), ctx, 1444064944));
+        assertEquals(1, cache.size());
+        assertNotSame(cwt, cache.processCOSE(token, ctx, 1444064945));
+        assertEquals(0, cache.size());
+    }
+    
+    /**
+     * Test that failed verifications are remembered for a while.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testNegative() throws Exception {
+        TokenCache cache = new TokenCache(10, 10);
+        byte[] bad = token.clone();
+        bad[bad.length-1] ^= 0x01;
+        AceException first = null;
+        try {
+            cache.processCOSE(bad, ctx, 100);
+            fail("Tampered token was accepted");
+        } catch (AceException e) {
+            first = e;
+        }
+        assertEquals(1, cache.size());
+        try {
+            cache.processCOSE(bad, ctx, 110);
+            fail("Tampered token was accepted");
+        } catch (AceException e) {
+            //The cached failure is the same as the original one
+            assertSame(first, e);
+        }
+        cache.purge(111);
+        assertEquals(0, cache.size());
+    }
+    
+    /**
+     * Test that the cache does not grow beyond its bound.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testBounded() throws Exception {
+        TokenCache cache = new TokenCache(1, 10);
+        CwtCryptoCtx other = CwtCryptoCtx.mac0(CwtTest.key256, 
+                AlgorithmID.HMAC_SHA_256_64.AsCBOR());
+        cache.processCOSE(token, ctx, 1444064900);
+        CWT cwt = cache.processCOSE(token, other, 1444064900);
+        assertEquals(1, cache.size());
+        assertSame(cwt, cache.processCOSE(token, other, 1444064900));
+    }
+    
+    /**
+     * Test that failed verifications do not displace verified tokens.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testFailuresBounded() throws Exception {
+        TokenCache cache = new TokenCache(4, 10);
+        CWT cwt = cache.processCOSE(token, ctx, 1444064900);
+        for (int i = 0; i < 10; i++) {
+            byte[] bad = token.clone();
+            bad[bad.length-1] ^= (byte)(i + 1);
+            try {
+                cache.processCOSE(bad, ctx, 1444064900);
+                fail("Tampered token was accepted");
+            } catch (AceException e) {
+                //Expected
+            }
+        }
+        assertEquals(2, cache.size());
+        assertSame(cwt, cache.processCOSE(token, ctx, 1444064900));
+    }
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2016, SICS Swedish ICT AB
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, 
+ *    this list of conditions and the following disclaimer in the documentation 
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT 
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, 
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, 
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY 
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE 
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package se.sics.ace.cwt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.upokecenter.cbor.CBORObject;
+
+import COSE.AlgorithmID;
+import COSE.Attribute;
+import COSE.HeaderKeys;
+import COSE.KeyKeys;
+import COSE.OneKey;
+import COSE.Signer;
+import se.sics.ace.AceException;
+
+/**
+ * Tests of verification with a trust store
+ * 
+ * @author Ludwig Seitz
+ *
+ */
+public class TrustStoreTest {
+    
+    private static Map<String, CBORObject> claims() {
+        Map<String, CBORObject> claims = new HashMap<>();
+        claims.put("iss", CBORObject.FromObject("coap://as.example.com"));
+        return claims;
+    }
+    
+    private static OneKey withKid(OneKey key, CBORObject kid) {
+        key.add(KeyKeys.KeyId, kid);
+        return key;
+    }
+    
+    /**
+     * Test Sign1 verification by kid and by thumbprint.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSign1() throws Exception {
+        CBORObject alg = AlgorithmID.ECDSA_256.AsCBOR();
+        TrustStore store = new TrustStore();
+        OneKey[] keys = new OneKey[3];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = withKid(OneKey.generateKey(AlgorithmID.ECDSA_256), 
+                    CBORObject.FromObject(new byte[] {'s', (byte)i}));
+            store.add(keys[i].PublicKey());
+        }
+        OneKey byThumbprint = OneKey.generateKey(AlgorithmID.ECDSA_256);
+        store.add(null, byThumbprint.PublicKey());
+        byte[] thumbprint = TrustStore.thumbprint(byThumbprint);
+        assertArrayEquals(thumbprint, 
+                TrustStore.thumbprint(byThumbprint.PublicKey()));
+        withKid(byThumbprint, CBORObject.FromObject(thumbprint));
+        assertEquals(4, store.size());
+        
+        CwtCryptoCtx verify = CwtCryptoCtx.sign1Verify(store, alg);
+        for (OneKey key : Arrays.asList(keys[0], keys[2], byThumbprint)) {
+            byte[] token = new CWT(claims()).encode(
+                    CwtCryptoCtx.sign1Create(key, alg)).EncodeToBytes();
+            CWT cwt = CWT.processCOSE(token, verify);
+            assertEquals("coap://as.example.com", 
+                    cwt.getClaim("iss").AsString());
+        }
+        
+        OneKey stranger = withKid(OneKey.generateKey(AlgorithmID.ECDSA_256),
+                CBORObject.FromObject(new byte[] {'x'}));
+        try {
+            CWT.processCOSE(new CWT(claims()).encode(CwtCryptoCtx.sign1Create(
+                    stranger, alg)).EncodeToBytes(), verify);
+            fail("Unknown kid was accepted");
+        } catch (AceException e) {
+            assertEquals("No key for kid", e.getMessage());
+        }
+        
+        //A key with a trusted kid that does not match the signature
+        OneKey impostor = withKid(OneKey.generateKey(AlgorithmID.ECDSA_256),
+                keys[1].get(KeyKeys.KeyId));
+        try {
+            CWT.processCOSE(new CWT(claims()).encode(CwtCryptoCtx.sign1Create(
+                    impostor, alg)).EncodeToBytes(), verify);
+            fail("Wrong key was accepted");
+        } catch (AceException e) {
+            //Expected
+        }
+        
+        assertTrue(store.remove(keys[0].PublicKey()));
+        assertNull(store.get(keys[0].get(KeyKeys.KeyId)));
+        assertEquals(3, store.size());
+    }
+    
+    /**
+     * Test that re-adding a key replaces the entries of the previous 
+     * instance.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testReAdd() throws Exception {
+        TrustStore store = new TrustStore();
+        OneKey key = OneKey.generateKey(AlgorithmID.ECDSA_256);
+        CBORObject kidA = CBORObject.FromObject(new byte[] {'a'});
+        CBORObject kidB = CBORObject.FromObject(new byte[] {'b'});
+        OneKey first = key.PublicKey();
+        store.add(kidA, first);
+        OneKey second = key.PublicKey();
+        store.add(kidB, second);
+        assertEquals(1, store.size());
+        assertNull(store.get(kidA));
+        assertSame(second, store.get(kidB));
+        assertNull(store.getVerifier(first));
+        assertNotNull(store.getVerifier(second));
+        
+        //The same instance under a new kid
+        store.add(kidA, second);
+        assertNull(store.get(kidB));
+        assertSame(second, store.get(kidA));
+        assertNotNull(store.getVerifier(second));
+        
+        assertTrue(store.remove(key));
+        assertNull(store.get(kidA));
+        assertNull(store.getVerifier(second));
+        assertEquals(0, store.size());
+    }
+    
+    /**
+     * Test Sign verification that picks the signer with a known kid.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testSign() throws Exception {
+        CBORObject alg = AlgorithmID.ECDSA_256.AsCBOR();
+        OneKey unknown = OneKey.generateKey(AlgorithmID.ECDSA_256);
+        OneKey known = OneKey.generateKey(AlgorithmID.ECDSA_256);
+        CBORObject kid = CBORObject.FromObject(new byte[] {'k'});
+        TrustStore store = new TrustStore();
+        store.add(kid, known.PublicKey());
+        
+        Signer first = new Signer();
+        first.setKey(unknown);
+        first.addAttribute(HeaderKeys.Algorithm, alg, Attribute.PROTECTED);
+        first.addAttribute(HeaderKeys.KID, 
+                CBORObject.FromObject(new byte[] {'u'}), 
+                Attribute.UNPROTECTED);
+        Signer second = new Signer();
+        second.setKey(known);
+        second.addAttribute(HeaderKeys.Algorithm, alg, Attribute.PROTECTED);
+        second.addAttribute(HeaderKeys.KID, kid, Attribute.UNPROTECTED);
+        byte[] token = new CWT(claims()).encode(CwtCryptoCtx.signCreate(
+                Arrays.asList(first, second), alg)).EncodeToBytes();
+        
+        CWT cwt = CWT.processCOSE(token, 
+                CwtCryptoCtx.signVerify(store, alg));
+        assertEquals("coap://as.example.com", cwt.getClaim("iss").AsString());
+    }
+}